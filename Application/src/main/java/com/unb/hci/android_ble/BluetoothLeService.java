@@ -29,15 +29,20 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
 import android.os.IBinder;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -54,9 +59,17 @@ public class BluetoothLeService extends Service {
     private LinkedList <String> mBluetoothDeviceAddress = new LinkedList<String>();
     private LinkedList <BluetoothGatt> mBluetoothGatt = new LinkedList<BluetoothGatt>();
     private DBHelper dbHelper;
-    private KinematicData[] kinematicDataArr;
-    private int caneArrSize = 10;
-    private int index;
+    private IngestQueue ingestQueue;
+    private StorageWriter storageWriter;
+    private int flushSamples = 1000;   //Group commit once this many samples are pending...
+    private long flushLatencyMs = 1000;   //...or the oldest has waited this long
+    private StorageLayout storageLayout = StorageLayout.ROWS;
+    private ConflictPolicy conflictPolicy = ConflictPolicy.QUARANTINE;
+    private int ringSize = 8192;
+    private final ConcurrentHashMap<UUID, PacketDecoder> decoders = new ConcurrentHashMap<UUID, PacketDecoder>();
+    private final ConcurrentHashMap<String, IngestLane> lanes = new ConcurrentHashMap<String, IngestLane>();
+    private final PacketInspector packetInspector = new PacketInspector(64);
+    private volatile SampleSubscription[] subscriptions = new SampleSubscription[0];  //Replaced on change, so packets read it without a lock or iterator
     private HashMap<String,Boolean> notificationsMap;
     public boolean recording;
 
@@ -73,12 +86,6 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
     public final static String ACTION_GATT_SERVICES_DISCOVERED =
             "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE =
-            "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.example.bluetooth.le.EXTRA_DATA";
-    public final static String EXTRA_BYTES =
-            "com.example.bluetooth.le.EXTRA_BYTES";
     public final static String DEVICE_ADDRESS =
             "com.example.bluetooth.le.DEVICE_ADDRESS";
 
@@ -88,6 +95,7 @@ public class BluetoothLeService extends Service {
     public static final String UUID_TX = "6e400002-b5a3-f393-e0a9-e50e24dcca9e";
     public static final String UUID_DFU = "00001530-1212-EFDE-1523-785FEABCD123";
     public static final int kTxMaxCharacters = 20;
+    public static final int REQUESTED_MTU = 247;    //Lets the firmware pack several samples per notification
 
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
             UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
@@ -107,21 +115,37 @@ public class BluetoothLeService extends Service {
                     intentAction = ACTION_GATT_CONNECTED;
                     broadcastUpdate(intentAction, gatt.getDevice().getAddress());
                     Log.i(TAG, "Connected to GATT server: " + gatt.getDevice().getAddress());
-                    // Attempts to discover services after successful connection.
-                    Log.i(TAG, "Attempting to start service discovery:" +
-                            mBluetoothGatt.get(deviceNum).discoverServices());
+                    getLane(gatt.getDevice().getAddress());
+                    // Negotiate a larger MTU first where supported; discovery continues in onMtuChanged.
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt.requestMtu(REQUESTED_MTU)) {
+                        Log.i(TAG, "Requesting MTU " + REQUESTED_MTU);
+                    } else {
+                        // Attempts to discover services after successful connection.
+                        Log.i(TAG, "Attempting to start service discovery:" +
+                                mBluetoothGatt.get(deviceNum).discoverServices());
+                    }
 
                 } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                     intentAction = ACTION_GATT_DISCONNECTED;
                     Log.i(TAG, "Disconnected from GATT server.");
+                    IngestLane lane = lanes.get(gatt.getDevice().getAddress());
+                    if(lane != null)
+                        lane.resetClock();  //Device counter restarts on reconnect
                     broadcastUpdate(intentAction, gatt.getDevice().getAddress());
                 }
             }
         }
 
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Log.i(TAG, "onMtuChanged: " + mtu + " status " + status);
+            Log.i(TAG, "Attempting to start service discovery:" + gatt.discoverServices());
+        }
+
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                compileDecoders(gatt);
                 //setNotifications(gatt.getDevice().getAddress());
                 //recordingSwitch(gatt);
                 Toast.makeText(getApplicationContext(),"Ready to start recording!",Toast.LENGTH_LONG);
@@ -137,8 +161,7 @@ public class BluetoothLeService extends Service {
                                          int status) {
             Log.d(TAG, "onCharacteristicRead: Data received!");
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-                parseData(characteristic.getValue());
+                parseData(gatt.getDevice().getAddress(), characteristic.getUuid(), characteristic.getValue());
             }
         }
 
@@ -146,8 +169,8 @@ public class BluetoothLeService extends Service {
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
             //Log.d(TAG, "onCharacteristicChanged: Data received!");
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            parseData(characteristic.getValue());
+            packetInspector.record(gatt.getDevice().getAddress(), characteristic.getValue(), System.currentTimeMillis());
+            parseData(gatt.getDevice().getAddress(), characteristic.getUuid(), characteristic.getValue());
         }
     };
 
@@ -164,29 +187,26 @@ public class BluetoothLeService extends Service {
         //Log.d(TAG, "broadcastUpdate: Broadcast sent: "+action);
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
+    public class LocalBinder extends Binder {
+        BluetoothLeService getService() {
+            return BluetoothLeService.this;
+        }
+
+        public SampleSubscription subscribe(String address, Executor executor, SampleListener listener) {
+            return BluetoothLeService.this.subscribe(address, executor, listener);
+        }
 
-        //Log.d(TAG, "broadcastUpdate: Broadcast sent, characteristic: "+characteristic.getUuid());
+        public SampleSubscription subscribe(String address, Executor executor, SampleListener listener,
+                                            double updateHz, ReductionMode mode) {
+            return BluetoothLeService.this.subscribe(address, executor, listener, updateHz, mode);
+        }
 
-        // For all profiles, writes the data formatted in HEX.
-        final byte[] data = characteristic.getValue();
-        if (data != null && data.length > 0) {
-            final StringBuilder stringBuilder = new StringBuilder(data.length);
-            for (byte byteChar : data)
-                stringBuilder.append(String.format("%02X ", byteChar));
-            //intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
-            intent.putExtra(EXTRA_DATA, stringBuilder.toString());
-            intent.putExtra(EXTRA_BYTES, data);
-            //Log.d(TAG, "broadcastUpdate: Characteristic Read: "+stringBuilder.toString());
+        public SampleSubscription mergeFrames(FrameMerger merger) {
+            return BluetoothLeService.this.mergeFrames(merger);
         }
-        sendBroadcast(intent);
-    }
 
-    public class LocalBinder extends Binder {
-        BluetoothLeService getService() {
-            return BluetoothLeService.this;
+        public void unsubscribe(SampleSubscription subscription) {
+            BluetoothLeService.this.unsubscribe(subscription);
         }
     }
 
@@ -206,6 +226,15 @@ public class BluetoothLeService extends Service {
 
     private final IBinder mBinder = new LocalBinder();
 
+    @Override
+    public void onDestroy() {
+        if (storageWriter != null) {
+            storageWriter.shutdown();   //Flushes everything already queued, then closes the journals
+            storageWriter = null;
+        }
+        super.onDestroy();
+    }
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -228,9 +257,25 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        int layouts = PacketLayouts.load(new File(getExternalFilesDir(null), PacketLayouts.LAYOUT_FILE_NAME));
+        if(layouts > 0) {
+            Log.d(TAG, "initialize: Loaded " + layouts + " packet layouts");
+        }
+
         dbHelper = DBHelper.getInstance(this);
-        kinematicDataArr = new KinematicData[caneArrSize];
-        index = 0;
+        if(storageWriter == null) {
+            //Callbacks publish into the ring, the writer thread does the SQLite work
+            //Raw packets land in the journal first, so a commit lost with the process is not data lost
+            File journalDir = new File(getFilesDir(), RawJournal.DIRECTORY_NAME);
+            JournalReplay replay = new JournalReplay(journalDir);   //Segments a killed run left behind
+            ingestQueue = new IngestQueue(new SampleRing(ringSize));
+            storageWriter = new StorageWriter(ingestQueue.getRing(), journalDir, flushSamples, flushLatencyMs);
+            storageWriter.setStorageLayout(storageLayout);
+            storageWriter.setConflictPolicy(conflictPolicy);
+            if(!replay.isEmpty())
+                storageWriter.replayFirst(replay);
+            storageWriter.start();
+        }
 
         notificationsMap = new HashMap<String,Boolean>();
         recording = false;
@@ -546,27 +591,180 @@ public class BluetoothLeService extends Service {
         mBluetoothDeviceAddress.set(deviceNum,null);
         mBluetoothGatt.remove(deviceNum);
         mBluetoothDeviceAddress.remove(deviceNum);
+        lanes.remove(address);
         broadcastUpdate(ACTION_GATT_DISCONNECTED, address);
     }
 
-    private void parseData(byte[] data) {
-        if (data != null) {
-            KinematicData canedata = DataRead.translateData(data, System.currentTimeMillis());
-            if(canedata == null)
+    //Compiles a decoder for every discovered characteristic with a registered packet layout
+    private void compileDecoders(BluetoothGatt gatt) {
+        for(BluetoothGattService service: gatt.getServices()){
+            for(BluetoothGattCharacteristic characteristic: service.getCharacteristics()){
+                PacketLayout layout = PacketLayouts.get(characteristic.getUuid().toString());
+                if(layout != null){
+                    decoders.put(characteristic.getUuid(), layout.compile());
+                    if (storageWriter != null)
+                        storageWriter.addChunkLayout(layout);   //Chunks keep the layout's resolution
+                    Log.d(TAG, "compileDecoders: " + layout.name + " layout for " + characteristic.getUuid());
+                }
+            }
+        }
+    }
+
+    //Lane of a device, created on connect (or on its first packet if that comes first)
+    private IngestLane getLane(String address) {
+        IngestLane lane = lanes.get(address);
+        if (lane == null && ingestQueue != null) {
+            //Each device journals on its own, so lanes never wait on each other
+            RawJournal journal = storageWriter.openJournal(ingestQueue.register(address));
+            lane = new IngestLane(address, ingestQueue, journal);
+            IngestLane raced = lanes.putIfAbsent(address, lane);
+            if (raced != null)
+                lane = raced;
+        }
+        return lane;
+    }
+
+    private void parseData(String address, UUID uuid, byte[] data) {
+        PacketDecoder decoder = decoders.get(uuid);
+        if (data != null && decoder != null) {
+            int count = decoder.sampleCount(data.length);
+            IngestLane lane = getLane(address);
+            if(count == 0 || lane == null)
                 return;
-            synchronized (this){
-                kinematicDataArr[index] = canedata;
-                index++;
-                if(index == caneArrSize){
-                    dbHelper.fullInsertLoop(kinematicDataArr);
-                    index = 0;
-                    //Log.d(TAG, "parseData: Data inserted");
+            long time = System.currentTimeMillis();
+            lane.ingest(decoder, uuid, data, time, subscriptions);
+        }
+    }
+
+    /**
+     * Subscribes to the decoded samples of one device (or every device if address is null). The
+     * listener is run on executor, once per notification; it is never called on the GATT thread.
+     */
+    public SampleSubscription subscribe(String address, Executor executor, SampleListener listener){
+        SampleSubscription subscription = new SampleSubscription(address, executor, listener);
+        addSubscription(subscription);
+        return subscription;
+    }
+
+    /**
+     * Subscribes at a fixed update rate: each 1/updateHz interval of a device's stream is reduced
+     * to one row (two for MIN_MAX) before it reaches the executor. Meant for live displays.
+     */
+    public SampleSubscription subscribe(String address, Executor executor, SampleListener listener,
+                                        double updateHz, ReductionMode mode){
+        SampleSubscription subscription = new ReducingSubscription(address, executor, listener, updateHz, mode);
+        addSubscription(subscription);
+        return subscription;
+    }
+
+    /**
+     * Feeds merger its devices' samples straight from their ingest lanes, so aligned frames are
+     * built as packets arrive; its FrameListener runs on the GATT thread. Stop with unsubscribe().
+     */
+    public SampleSubscription mergeFrames(FrameMerger merger){
+        SampleSubscription subscription = new FrameMerger.LaneFeed(merger);
+        addSubscription(subscription);
+        return subscription;
+    }
+
+    public void unsubscribe(SampleSubscription subscription){
+        subscription.cancel();
+        synchronized (this) {
+            SampleSubscription[] current = subscriptions;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == subscription) {
+                    SampleSubscription[] shrunk = new SampleSubscription[current.length - 1];
+                    System.arraycopy(current, 0, shrunk, 0, i);
+                    System.arraycopy(current, i + 1, shrunk, i, shrunk.length - i);
+                    subscriptions = shrunk;
+                    break;
                 }
             }
-            //Log.d(TAG, "parseData: canedata: "+ canedata.toString());
         }
     }
 
+    private synchronized void addSubscription(SampleSubscription subscription){
+        SampleSubscription[] grown = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+        grown[grown.length - 1] = subscription;
+        subscriptions = grown;
+    }
+
+    //Tunes the storage group commit; larger batches cost fewer commits, the latency bounds data at risk
+    public void setFlushPolicy(int maxSamples, long maxLatencyMs){
+        flushSamples = maxSamples;
+        flushLatencyMs = maxLatencyMs;
+        if(storageWriter != null)
+            storageWriter.setFlushPolicy(maxSamples, maxLatencyMs);
+    }
+
+    //CHUNKS stores long recordings several times smaller and cheaper to insert, see ChunkCodec
+    public void setStorageLayout(StorageLayout layout){
+        storageLayout = layout;
+        if(storageWriter != null)
+            storageWriter.setStorageLayout(layout);
+    }
+
+    //What to do with a sample whose (device, time, seq) key is already stored, see ConflictPolicy
+    public void setConflictPolicy(ConflictPolicy policy){
+        conflictPolicy = policy;
+        if(storageWriter != null)
+            storageWriter.setConflictPolicy(policy);
+    }
+
+    public DBHelper.InsertStats getInsertStats(){
+        return DBHelper.getInsertStats();
+    }
+
+    //What to do with new samples when storage cannot keep up, see OverloadPolicy
+    public void setOverloadPolicy(OverloadPolicy policy){
+        if(ingestQueue != null)
+            ingestQueue.setPolicy(policy);
+    }
+
+    public IngestQueue getIngestQueue(){
+        return ingestQueue;
+    }
+
+    //Received/dropped/decimated counters for a device, null if it has sent nothing yet
+    public IngestStats getIngestStats(String address){
+        return ingestQueue == null ? null : ingestQueue.getStats(address);
+    }
+
+    public IngestLane getIngestLane(String address){
+        return lanes.get(address);
+    }
+
+    public StorageWriter.Stats getWriterStats(){
+        return storageWriter == null ? null : storageWriter.getStats();
+    }
+
+    //Debug aid comparing insert paths in a scratch table, see InsertBenchmark. Blocks; call off the main thread
+    public String runInsertBenchmark(int rows){
+        return InsertBenchmark.run(DBHelper.getInstance(this).getWritableDatabase(), rows);
+    }
+
+    //Debug aid counting decoder allocations per packet, see DecodeBenchmark. Blocks; call off the main thread
+    public String runDecodeBenchmark(int packets){
+        return DecodeBenchmark.run(packets);
+    }
+
+    //Raw packet capture for debugging; disabled until setEnabled(true)
+    public PacketInspector getPacketInspector(){
+        return packetInspector;
+    }
+
+    //Hysteresis thresholds for step detection on a device's force channel, see StepDetector
+    public void setStepThresholds(String address, double onset, double release){
+        if(storageWriter != null)
+            storageWriter.getStepDetector().setThresholds(IngestLane.deviceId(address), onset, release);
+    }
+
+    //Clock estimate for a device whose layout carries a sample counter, null otherwise
+    public ClockSync getClockSync(String address){
+        IngestLane lane = lanes.get(address);
+        return lane == null ? null : lane.getClockSync();
+    }
+
     public boolean setNotifications(String address){
         if (mBluetoothAdapter == null || mBluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
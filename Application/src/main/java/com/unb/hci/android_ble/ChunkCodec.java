@@ -0,0 +1,298 @@
+package com.unb.hci.android_ble;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Packs runs of one device's samples into compact caneChunks rows, the alternative to one
+ * caneFull row of ten doubles per sample (see StorageLayout).
+ *
+ * Every channel is quantized to integer counts of its scale, the resolution of the packet
+ * layouts in use (scalesFor(): a field's scale, 0.01 degree for estimated pitch/roll, SCALES
+ * otherwise), so decoded values round-trip exactly. Values outside the int range are clamped and
+ * counted. A chunk's data blob is
+ *   byte version, then the CHANNEL_COUNT scales as little endian doubles, then for each sample
+ *   the zigzag varint of its time minus the previous one (the first relative to the chunk time),
+ *   then channel by channel the zigzag varint of each count minus the previous count of that
+ *   channel (the first relative to 0)
+ * so every chunk describes itself and slowly changing channels cost one byte a sample. Version 1
+ * chunks have no scales; they were written with those in the caneChunkScales table. A chunk holds
+ * at most MAX_SAMPLES samples in time order spanning at most MAX_SPAN_MS, which bounds how far
+ * before a range a query has to look.
+ *
+ * Not thread safe; the StorageWriter owns one.
+ */
+public class ChunkCodec {
+
+    public static final int VERSION = 2;
+    public static final int VERSION_TABLE_SCALES = 1;   //Scales in caneChunkScales, still decoded
+    public static final int MAX_SAMPLES = 1024;
+    public static final long MAX_SPAN_MS = 60000;
+    static final int HEADER_SIZE = 1 + 8 * KinematicData.CHANNEL_COUNT;
+
+    //Default value of one count per channel, indexed by the KinematicData CHANNEL_ constants
+    public static final double[] SCALES = {1, 1, 1, 1, 1, 1, 1, 0.01, 0.01, 1};
+
+    public static class Chunk {
+        public final long device;
+        public final long time;        //First and earliest sample
+        public final long endTime;     //Last and latest sample
+        public final int samples;
+        public final byte[] data;
+
+        public Chunk(long device, long time, long endTime, int samples, byte[] data) {
+            this.device = device;
+            this.time = time;
+            this.endTime = endTime;
+            this.samples = samples;
+            this.data = data;
+        }
+    }
+
+    private final double[] scales = new double[KinematicData.CHANNEL_COUNT];
+    private final double[] inverseScales = new double[KinematicData.CHANNEL_COUNT];
+    private final ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+    private int[] rows = new int[MAX_SAMPLES];
+    private boolean[] done = new boolean[MAX_SAMPLES];
+    private byte[] buffer = new byte[HEADER_SIZE + MAX_SAMPLES * (10 + 5 * KinematicData.CHANNEL_COUNT)];   //Worst case varints
+    private int length;
+    private long clamped;
+
+    public ChunkCodec() {
+        setScales(SCALES);
+    }
+
+    //Scales the next chunks are encoded with
+    public void setScales(double[] scalesIn) {
+        for (int c = 0; c < scales.length; c++) {
+            scales[c] = scalesIn[c];
+            inverseScales[c] = 1 / scalesIn[c];
+        }
+    }
+
+    /**
+     * Scales that keep every value a layout decodes: per channel the finest field scale, 0.01
+     * degree for pitch and roll when they are estimated, SCALES for channels it does not read.
+     */
+    public static double[] scalesFor(PacketLayout layout) {
+        double[] out = SCALES.clone();
+        boolean[] read = new boolean[out.length];
+        for (PacketLayout.Field field : layout.fields) {
+            double scale = Math.abs(field.scale);
+            if (scale > 0 && (!read[field.channel] || scale < out[field.channel])) {
+                out[field.channel] = scale;
+                read[field.channel] = true;
+            }
+        }
+        if (layout.getGyroScale() > 0) {
+            out[KinematicData.CHANNEL_PITCH] = SCALES[KinematicData.CHANNEL_PITCH];
+            out[KinematicData.CHANNEL_ROLL] = SCALES[KinematicData.CHANNEL_ROLL];
+        }
+        return out;
+    }
+
+    //Per channel the finer of two sets of scales
+    public static double[] finest(double[] a, double[] b) {
+        double[] out = new double[a.length];
+        for (int c = 0; c < out.length; c++) {
+            out[c] = Math.min(a[c], b[c]);
+        }
+        return out;
+    }
+
+    /**
+     * Scales a chunk was encoded with: from its header, or for a version 1 chunk tableScales
+     * (the caneChunkScales table).
+     */
+    public static double[] scalesOf(byte[] data, double[] tableScales) {
+        if (data.length > 0 && data[0] == VERSION_TABLE_SCALES) {
+            return tableScales;
+        }
+        checkVersion(data);
+        double[] out = new double[KinematicData.CHANNEL_COUNT];
+        for (int c = 0; c < out.length; c++) {
+            out[c] = getDouble(data, 1 + 8 * c);
+        }
+        return out;
+    }
+
+    /**
+     * Encodes a batch into chunks, one run per device. A run is stable sorted by time first
+     * (samples can arrive out of order, e.g. a burst of multi-sample packets), so each chunk's
+     * time and endTime are its earliest and latest samples and its span is bounded on those.
+     * The returned list is reused by the next call.
+     */
+    public List<Chunk> encode(SampleBatch batch) {
+        chunks.clear();
+        if (rows.length < batch.size) {
+            rows = new int[batch.size];
+            done = new boolean[batch.size];
+        }
+        Arrays.fill(done, 0, batch.size, false);
+        for (int first = 0; first < batch.size; first++) {
+            if (done[first]) {
+                continue;
+            }
+            long device = batch.device[first];
+            int n = 0;
+            for (int i = first; i < batch.size; i++) {
+                if (!done[i] && batch.device[i] == device) {
+                    rows[n++] = i;
+                    done[i] = true;
+                }
+            }
+            sortByTime(batch, n);
+            int start = 0;
+            while (start < n) {
+                long startTime = batch.time[rows[start]];
+                int end = start + 1;
+                while (end < n && end - start < MAX_SAMPLES
+                        && batch.time[rows[end]] - startTime <= MAX_SPAN_MS) {
+                    end++;
+                }
+                chunks.add(encode(batch, device, start, end));
+                start = end;
+            }
+        }
+        return chunks;
+    }
+
+    //Insertion sort of rows[0..n) by time, stable so same-ms samples keep their order; runs are nearly sorted
+    private void sortByTime(SampleBatch batch, int n) {
+        for (int r = 1; r < n; r++) {
+            int row = rows[r];
+            long t = batch.time[row];
+            int k = r - 1;
+            while (k >= 0 && batch.time[rows[k]] > t) {
+                rows[k + 1] = rows[k];
+                k--;
+            }
+            rows[k + 1] = row;
+        }
+    }
+
+    //Values clamped to the int range so far
+    public long getClamped() {
+        return clamped;
+    }
+
+    private Chunk encode(SampleBatch batch, long device, int start, int end) {
+        length = 0;
+        buffer[length++] = VERSION;
+        for (int c = 0; c < scales.length; c++) {
+            long bits = Double.doubleToLongBits(scales[c]);
+            for (int b = 0; b < 8; b++) {
+                buffer[length++] = (byte) (bits >>> (8 * b));
+            }
+        }
+        long time = batch.time[rows[start]];
+        long previous = time;
+        for (int r = start; r < end; r++) {
+            long t = batch.time[rows[r]];
+            putZigzag(t - previous);
+            previous = t;
+        }
+        for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+            float[] channel = batch.channels[c];
+            double inverse = inverseScales[c];
+            int last = 0;
+            for (int r = start; r < end; r++) {
+                long q = Math.round(channel[rows[r]] * inverse);
+                if (q > Integer.MAX_VALUE || q < Integer.MIN_VALUE) {
+                    q = q > 0 ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+                    clamped++;
+                }
+                putZigzag(q - last);
+                last = (int) q;
+            }
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(buffer, 0, data, 0, length);
+        return new Chunk(device, time, previous, end - start, data);
+    }
+
+    private void putZigzag(long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buffer[length++] = (byte) v;
+    }
+
+    /**
+     * Appends the samples of a chunk whose time is in [min, max) to out, growing it as needed,
+     * and returns how many were appended. tableScales are the caneChunkScales table's, used for
+     * version 1 chunks; later ones carry their own.
+     */
+    public static int decode(long device, long time, int samples, byte[] data, double[] tableScales,
+                             long min, long max, SampleBatch out) {
+        double[] scales = scalesOf(data, tableScales);
+        int base = out.size;
+        out.ensureCapacity(base + samples);
+        int[] pos = {data[0] == VERSION_TABLE_SCALES ? 1 : HEADER_SIZE};
+        long t = time;
+        for (int i = 0; i < samples; i++) {
+            t += getZigzag(data, pos);
+            out.time[base + i] = t;
+            out.device[base + i] = device;
+        }
+        for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+            float[] channel = out.channels[c];
+            double scale = scales[c];
+            long q = 0;
+            for (int i = 0; i < samples; i++) {
+                q += getZigzag(data, pos);
+                channel[base + i] = (float) (q * scale);
+            }
+        }
+        //Keep only the rows in range, in place
+        int kept = base;
+        for (int i = base; i < base + samples; i++) {
+            if (out.time[i] >= min && out.time[i] < max) {
+                if (kept != i) {
+                    out.time[kept] = out.time[i];
+                    out.device[kept] = out.device[i];
+                    for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                        out.channels[c][kept] = out.channels[c][i];
+                    }
+                }
+                kept++;
+            }
+        }
+        out.size = kept;
+        return kept - base;
+    }
+
+    private static void checkVersion(byte[] data) {
+        if (data.length == 0 || (data[0] != VERSION && data[0] != VERSION_TABLE_SCALES)) {
+            throw new IllegalArgumentException("Unknown chunk version " + (data.length == 0 ? -1 : data[0]));
+        }
+        if (data[0] == VERSION && data.length < HEADER_SIZE) {
+            throw new IllegalArgumentException("Chunk of " + data.length + " bytes is shorter than its header");
+        }
+    }
+
+    private static double getDouble(byte[] data, int offset) {
+        long bits = 0;
+        for (int b = 7; b >= 0; b--) {
+            bits = (bits << 8) | (data[offset + b] & 0xFF);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long getZigzag(byte[] data, int[] pos) {
+        long v = 0;
+        int shift = 0;
+        int p = pos[0];
+        byte b;
+        do {
+            b = data[p++];
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        pos[0] = p;
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
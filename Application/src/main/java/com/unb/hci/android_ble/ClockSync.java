@@ -0,0 +1,155 @@
+package com.unb.hci.android_ble;
+
+/**
+ * Maps a device's sample counter onto phone time for one stream.
+ *
+ * Arrival times are device times plus a transmission delay that is never negative but varies
+ * with BLE connection-interval batching, so the estimator follows the lower envelope of
+ * (arrival - predicted): a packet arriving earlier than predicted pulls the offset down at once,
+ * later packets only let it creep up slowly. The device/phone clock rate is re-estimated from
+ * the envelope every RATE_WINDOW_MS, which tracks crystal drift, and the spread of arrivals above
+ * the envelope is reported as jitter. Mapped times never go backwards.
+ *
+ * Not thread safe; each stream is fed from one GATT callback at a time.
+ */
+public class ClockSync {
+
+    private static final double RELAX = 0.0005;         //Per-packet upward creep of the offset
+    private static final double JITTER_SMOOTHING = 0.05;
+    private static final double RATE_SMOOTHING = 0.25;
+    private static final long RATE_WINDOW_MS = 30000;
+    private static final double MAX_RATE_ERROR = 0.001; //Reject rate estimates beyond 1000 ppm
+
+    private final long counterModulus;
+    private final double tickMs;
+
+    private boolean counterStarted;
+    private boolean started;
+    private long lastRaw;
+    private long unwrapped;             //Ticks since the first sample
+    private double offsetMs;            //Phone time of tick 0
+    private double rate = 1;            //Phone ms per device ms
+    private double jitterMs;
+    private long lastMapped = Long.MIN_VALUE;
+
+    //Lower envelope over the current rate window
+    private double windowStartDevice;
+    private double windowMinResidual;
+    private double windowMinDevice;
+    private double prevAnchorDevice = Double.NaN;
+    private double prevAnchorPhone;
+
+    private long resets;
+
+    public ClockSync(int counterBits, long tickUs) {
+        this.counterModulus = 1L << counterBits;
+        this.tickMs = tickUs / 1000.0;
+    }
+
+    /**
+     * Advances the counter to raw (which may have wrapped) and returns the device time in ms
+     * since the first sample. Call once per sample, in order.
+     */
+    public double deviceTime(long raw) {
+        if (!counterStarted) {
+            counterStarted = true;
+            lastRaw = raw;
+            unwrapped = 0;
+            return 0;
+        }
+        long delta = (raw - lastRaw) & (counterModulus - 1);
+        lastRaw = raw;
+        if (delta > counterModulus / 2) {
+            //Counter went backwards (device reset): restart the mapping from here
+            started = false;
+            resets++;
+            unwrapped = 0;
+            return 0;
+        }
+        unwrapped += delta;
+        return unwrapped * tickMs;
+    }
+
+    /**
+     * Feeds the arrival time of the newest sample of a packet, whose device time was returned by
+     * deviceTime(). Updates the offset, rate and jitter estimates.
+     */
+    public void observe(double deviceMs, long arrivalMs) {
+        if (!started) {
+            started = true;
+            offsetMs = arrivalMs - deviceMs;
+            rate = 1;
+            windowStartDevice = deviceMs;
+            windowMinResidual = arrivalMs - deviceMs;
+            windowMinDevice = deviceMs;
+            prevAnchorDevice = Double.NaN;
+            return;
+        }
+        double residual = arrivalMs - (offsetMs + deviceMs * rate);
+        if (residual < 0) {
+            offsetMs += residual;
+        } else {
+            offsetMs += residual * RELAX;
+        }
+        jitterMs += (Math.abs(residual) - jitterMs) * JITTER_SMOOTHING;
+
+        double rawResidual = arrivalMs - deviceMs;
+        if (rawResidual < windowMinResidual) {
+            windowMinResidual = rawResidual;
+            windowMinDevice = deviceMs;
+        }
+        if (deviceMs - windowStartDevice >= RATE_WINDOW_MS) {
+            double anchorPhone = windowMinDevice + windowMinResidual;
+            if (!Double.isNaN(prevAnchorDevice) && windowMinDevice > prevAnchorDevice) {
+                double measured = (anchorPhone - prevAnchorPhone) / (windowMinDevice - prevAnchorDevice);
+                if (Math.abs(measured - 1) < MAX_RATE_ERROR) {
+                    double newRate = rate + (measured - rate) * RATE_SMOOTHING;
+                    //Keep the current prediction continuous when the rate changes
+                    offsetMs += deviceMs * (rate - newRate);
+                    rate = newRate;
+                }
+            }
+            prevAnchorDevice = windowMinDevice;
+            prevAnchorPhone = anchorPhone;
+            windowStartDevice = deviceMs;
+            windowMinResidual = rawResidual;
+            windowMinDevice = deviceMs;
+        }
+    }
+
+    //Phone time for a device time, never earlier than the previous result
+    public long map(double deviceMs) {
+        long mapped = Math.round(offsetMs + deviceMs * rate);
+        if (mapped < lastMapped) {
+            mapped = lastMapped;
+        }
+        lastMapped = mapped;
+        return mapped;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    //Device clock drift relative to the phone in parts per million
+    public double getDriftPpm() {
+        return (rate - 1) * 1e6;
+    }
+
+    public double getJitterMs() {
+        return jitterMs;
+    }
+
+    public double getOffsetMs() {
+        return offsetMs;
+    }
+
+    public long getResets() {
+        return resets;
+    }
+
+    public String toString() {
+        return "drift " + Math.round(getDriftPpm()) + " ppm, jitter " + Math.round(jitterMs * 10) / 10.0
+                + " ms, resets " + resets;
+    }
+}
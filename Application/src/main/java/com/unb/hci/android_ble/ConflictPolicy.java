@@ -0,0 +1,15 @@
+package com.unb.hci.android_ble;
+
+/**
+ * What a caneFull insert does with a row whose key is already taken. Keys come with the samples
+ * (device, time and the seq IngestLane gave them), so a taken key means the sample was delivered
+ * or replayed again. REPLACE and QUARANTINE first compare the row with the stored one and drop it
+ * as a duplicate if the values are the same; the policy decides only for rows that differ.
+ * Applied row by row inside the batch transaction, so a collision never costs the rest of the
+ * batch; see DBHelper.fullInsertLoop and DBHelper.getInsertStats.
+ */
+public enum ConflictPolicy {
+    IGNORE,         //Keep the stored row, drop the new one unseen (journal replay)
+    REPLACE,        //Overwrite the stored row with the new one
+    QUARANTINE      //Keep the stored row and divert the new one to caneQuarantine for inspection
+}
@@ -80,20 +80,19 @@ public class DBExport extends IntentService {
             if (f.exists() && !f.isDirectory()) {
                 CSVReader reader = new CSVReader(new FileReader(filePath));
                 String [] nextLine;
-                int counter = 0;
-                KinematicData[] caneArr = new KinematicData[1000];
+                SampleBatch caneArr = new SampleBatch(1000);
                 while ((nextLine = reader.readNext()) != null) {
                     // nextLine[] is an array of values from the line
 
                     try {
+                        //Legacy logger format; exports from this app have 12 columns
                         if (nextLine.length == 11) {
-                            caneArr[counter] = new KinematicData(Long.parseLong(nextLine[9]), Double.parseDouble(nextLine[0]),
+                            caneArr.add(Long.parseLong(nextLine[9]), Double.parseDouble(nextLine[0]),
                                     Double.parseDouble(nextLine[1]), Double.parseDouble(nextLine[2]), Double.parseDouble(nextLine[3]),
                                     Double.parseDouble(nextLine[4]), Double.parseDouble(nextLine[5]), 0, 0, Double.parseDouble(nextLine[6]));
-                            counter++;
-                            if (counter >= 1000) {
+                            if (caneArr.isFull()) {
                                 String error = DBHelper.fullInsertLoop(caneArr);
-                                counter = 0;
+                                caneArr.clear();
                                 Log.d(TAG, error);
                             }
                             //Log.d(TAG, nextLine[8]);
@@ -146,7 +145,7 @@ public class DBExport extends IntentService {
         File f = new File(filePath);
         FileWriter mFileWriter;
         CSVWriter writer;
-        KinematicData[] canePullArr = null;
+        SampleBatch canePullArr = new SampleBatch(1024);    //Reused for every chunk
         try {
             if (f.exists() && !f.isDirectory()) {
                 mFileWriter = new FileWriter(filePath, true);
@@ -162,24 +161,28 @@ public class DBExport extends IntentService {
             long numEntries = dbHelper.getFullTableCount();
             String[] dataLine;
             for (long hour = startHour; hour <= endHour; hour+=pullSize) {
-                canePullArr = dbHelper.getFullHour(hour, pullSize); //Retrieves pullSize number of datapoints
-                if(canePullArr == null) {
+                if(dbHelper.getFullHour(hour, pullSize, canePullArr) == null) { //Retrieves pullSize number of datapoints
                     continue;
                 }
-                Log.d(TAG, "handleActionExportDB: Array "+hour+" length" + canePullArr.length);
-                for(int i=0; i<canePullArr.length; i++){    //Write each data point to a line of the CSV
-                    dataLine = new String[]{Long.toString(canePullArr[i].time),Double.toString(canePullArr[i].accx),
-                            Double.toString(canePullArr[i].accy), Double.toString(canePullArr[i].accz),
-                            Double.toString(canePullArr[i].gyrox), Double.toString(canePullArr[i].gyroy),
-                            Double.toString(canePullArr[i].gyroz), Double.toString(canePullArr[i].pitch),
-                            Double.toString(canePullArr[i].roll), Double.toString(canePullArr[i].force)};
+                Log.d(TAG, "handleActionExportDB: Array "+hour+" length" + canePullArr.size);
+                float[][] ch = canePullArr.channels;
+                for(int i=0; i<canePullArr.size; i++){    //Write each data point to a line of the CSV
+                    dataLine = new String[]{Long.toString(canePullArr.time[i]),Float.toString(ch[KinematicData.CHANNEL_ACC_X][i]),
+                            Float.toString(ch[KinematicData.CHANNEL_ACC_Y][i]), Float.toString(ch[KinematicData.CHANNEL_ACC_Z][i]),
+                            Float.toString(ch[KinematicData.CHANNEL_GYRO_X][i]), Float.toString(ch[KinematicData.CHANNEL_GYRO_Y][i]),
+                            Float.toString(ch[KinematicData.CHANNEL_GYRO_Z][i]), Float.toString(ch[KinematicData.CHANNEL_PITCH][i]),
+                            Float.toString(ch[KinematicData.CHANNEL_ROLL][i]), Float.toString(ch[KinematicData.CHANNEL_FORCE][i]),
+                            IngestLane.address(canePullArr.device[i]), Float.toString(ch[KinematicData.CHANNEL_DISTANCE][i])};
                     writer.writeNext(dataLine);
                 }
             }
             writer.flush();
             writer.close();
 
-            dbHelper.deleteRows(dbBounds[0],dbBounds[1]);
+            String deleted = DBHelper.deleteRows(dbBounds[0],dbBounds[1]);
+            if (!"Clear".equals(deleted)) {
+                throw new IllegalStateException("Exported rows not deleted: " + deleted);   //Reported as unsuccessful
+            }
 
             Handler h = new Handler(DBExport.this.getMainLooper());
             h.post(new Runnable() {
@@ -3,13 +3,18 @@ package com.unb.hci.android_ble;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import java.io.File;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by Ian on 2016-05-10.
@@ -18,10 +23,22 @@ public class DBHelper extends SQLiteOpenHelper {
     private static DBHelper sInstance;
 
     public static final String DATABASE_NAME = "Cane.db";
+    public static final int DATABASE_VERSION = 9;   //2: device column in caneFull, 3: distance column, 4: caneAnalytics per device, 5: caneSteps, 6: caneChunks, 7: caneDevices ids and caneFull seq, 8: caneQuarantine, 9: caneRollups
     public static final String CANE_TABLE_ANALYTICS = "caneAnalytics";    //Hourly averages
     public static final String CANE_TABLE_FULL = "caneFull";      //All raw data and angles
     public static final String CANE_TABLE_SHORT = "caneShort";      //All raw data and angles
+    public static final String CANE_TABLE_STEPS = "caneSteps";      //One row per detected step
+    public static final String CANE_TABLE_CHUNKS = "caneChunks";    //Encoded runs of samples, see ChunkCodec
+    public static final String CANE_TABLE_CHUNK_SCALES = "caneChunkScales";    //Value of one count per channel
+    public static final String CANE_TABLE_DEVICES = "caneDevices";  //Device dictionary: small integer id per MAC
+    public static final String CANE_TABLE_QUARANTINE = "caneQuarantine";    //caneFull rows whose key was taken, see ConflictPolicy
+    public static final String CANE_TABLE_ROLLUPS = "caneRollups";  //Per-channel mean/min/max buckets, see RollupPyramid
     public static final String CANE_COLUMN_TIME = "time";
+    public static final String CANE_COLUMN_DEVICE = "device";   //caneDevices id, 0 if unknown
+    public static final String CANE_COLUMN_SEQ = "seq";         //Orders samples of one device in the same millisecond
+    public static final String CANE_COLUMN_ID = "id";
+    public static final String CANE_COLUMN_MAC = "mac";         //IngestLane.deviceId
+    public static final String CANE_COLUMN_ADDRESS = "address";
     public static final String CANE_COLUMN_FORCE = "force";
     public static final String CANE_COLUMN_ACC_X = "acc_x";
     public static final String CANE_COLUMN_ACC_Y = "acc_y";
@@ -31,18 +48,66 @@ public class DBHelper extends SQLiteOpenHelper {
     public static final String CANE_COLUMN_GYRO_Z = "gyro_z";
     public static final String CANE_COLUMN_ANGLE_PITCH = "pitch";
     public static final String CANE_COLUMN_ANGLE_ROLL = "roll";
+    public static final String CANE_COLUMN_DISTANCE = "distance";
     public static final String CANE_COLUMN_FORCE_VARIANCE = "forceVariance";
     public static final String CANE_COLUMN_PITCH_VARIANCE = "pitchVariance";
     public static final String CANE_COLUMN_ROLL_VARIANCE = "rollVariance";
     public static final String CANE_COLUMN_FORCE_MAX = "forceMax";
     public static final String CANE_COLUMN_ROLL_MEAN = "rollMean";
+    public static final String CANE_COLUMN_FORCE_MEAN = "forceMean";
+    public static final String CANE_COLUMN_PITCH_MEAN = "pitchMean";
+    public static final String CANE_COLUMN_SAMPLES = "samples";
+    public static final String CANE_COLUMN_PEAK_TIME = "peakTime";
+    public static final String CANE_COLUMN_PEAK_FORCE = "peakForce";
+    public static final String CANE_COLUMN_DURATION = "duration";
+    public static final String CANE_COLUMN_IMPULSE = "impulse";
+    public static final String CANE_COLUMN_END_TIME = "endTime";
+    public static final String CANE_COLUMN_DATA = "data";
+    public static final String CANE_COLUMN_CHANNEL = "channel";
+    public static final String CANE_COLUMN_NAME = "name";
+    public static final String CANE_COLUMN_SCALE = "scale";
+    public static final String CANE_COLUMN_LEVEL = "level";     //Index into RollupPyramid.LEVELS_MS
+    static final String ROLLUP_MEAN = "_mean";   //Rollup columns are the channel name plus one of these
+    static final String ROLLUP_MIN = "_min";
+    static final String ROLLUP_MAX = "_max";
     public static final String TAG = "DBError";
     //private SQLiteDatabase db = null;
+    private static volatile double[] sChunkScales;   //caneChunkScales, read once
+
+    //caneDevices cache, guarded by the class; rows are only ever added
+    private static final HashMap<Long, Long> sDeviceKeys = new HashMap<Long, Long>();    //Ids by MAC
+    private static final HashMap<Long, Long> sDeviceMacs = new HashMap<Long, Long>();  //By id
+
+    //Compiled inserts, reused across batches and guarded by sInsertLock; see insertStatement()
+    private static final Object sInsertLock = new Object();
+    private static final String[] CONFLICT_CLAUSES = {"", " OR ROLLBACK", " OR ABORT", " OR FAIL", " OR IGNORE", " OR REPLACE"};
+    static final String FULL_COLUMNS = "device, time, seq, force, acc_x, acc_y, acc_z, gyro_x, gyro_y, gyro_z, pitch, roll, distance";
+    private static final HashMap<String, SQLiteStatement> sInserts = new HashMap<String, SQLiteStatement>();
+    //Most rows getInterval(), modVals() and averageVals() return, so their buckets stay a few MB; wider ranges widen them
+    private static final int PLOT_MAX_BUCKETS = 4096;
+    private static final InsertStats sInsertStats = new InsertStats();     //Guarded by sInsertLock
+    //Ranges deleteRows() cut, as starttime and endtime, overlaps merged; guarded by sInsertLock
+    private static final ArrayList<long[]> sDeleted = new ArrayList<long[]>();
+
+    //caneFull rows by outcome since the process started
+    public static class InsertStats {
+        public long inserted;
+        public long ignored;
+        public long replaced;
+        public long quarantined;
+        public long duplicates;         //Same key and values as a stored row, dropped (see ConflictPolicy)
+        public long failedBatches;      //Lost to errors other than key conflicts
+
+        public String toString() {
+            return inserted + " inserted, " + ignored + " ignored, " + replaced + " replaced, " + quarantined
+                    + " quarantined, " + duplicates + " duplicates, " + failedBatches + " batches failed";
+        }
+    }
 
     private DBHelper(Context context, String databaseName) {
         //super(context, Environment.getExternalStorageDirectory().getAbsolutePath()
         //       + File.separator+DATABASE_NAME,null,1);
-        super(context, databaseName, null, 1);
+        super(context, databaseName, null, DATABASE_VERSION);
         //db = this.getReadableDatabase();
     }
 
@@ -61,19 +126,179 @@ public class DBHelper extends SQLiteOpenHelper {
     }
 
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL("CREATE TABLE IF NOT EXISTS " + CANE_TABLE_ANALYTICS + "(time long primary key, forceMax double, rollMean double, forceVariance double," +
-                "pitchVariance double, rollVariance double)");
-        db.execSQL("CREATE TABLE IF NOT EXISTS " + CANE_TABLE_FULL + "(time long primary key, force double, acc_x double, acc_y double, acc_z double," +
-                "gyro_x double, gyro_y double, gyro_z double, pitch double, roll double)");
+        createAnalyticsTable(db);
+        createStepsTable(db);
+        createChunkTables(db);
+        createDevicesTable(db);
+        createQuarantineTable(db);
+        createRollupsTable(db);
+        createFullTable(db, CANE_TABLE_FULL);
         db.execSQL("CREATE TABLE IF NOT EXISTS " + CANE_TABLE_SHORT + "(time long primary key, force double, acc_x double, acc_y double, acc_z double," +
                 "gyro_x double, gyro_y double, gyro_z double, pitch double, roll double)");
     }
 
+    //Several devices, and one fast device, can sample in the same millisecond, so rows are keyed by
+    //device, time and seq. The key's index serves per-device time ranges; the time index ranges across devices
+    static void createFullTable(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + table + "(device integer not null default 0, time long, seq integer not null default 0," +
+                "force double, acc_x double, acc_y double, acc_z double, gyro_x double, gyro_y double, gyro_z double," +
+                "pitch double, roll double, distance double, primary key (device, time, seq))");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + table + "_time ON " + table + "(time)");
+    }
+
+    //No key: every diverted row is kept, with why and when it was diverted
+    private static void createQuarantineTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CANE_TABLE_QUARANTINE + "(device integer not null default 0, time long, seq integer not null default 0," +
+                "force double, acc_x double, acc_y double, acc_z double, gyro_x double, gyro_y double, gyro_z double," +
+                "pitch double, roll double, distance double, reason text, quarantined long)");
+    }
+
+    private static void createRollupsTable(SQLiteDatabase db) {
+        StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS " + CANE_TABLE_ROLLUPS
+                + "(level integer, device integer not null default 0, time long, samples integer");
+        for (String name : KinematicData.CHANNEL_NAMES) {
+            sql.append(", ").append(name).append(ROLLUP_MEAN).append(" double, ").append(name).append(ROLLUP_MIN)
+                    .append(" double, ").append(name).append(ROLLUP_MAX).append(" double");
+        }
+        db.execSQL(sql.append(", primary key (level, device, time))").toString());
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + CANE_TABLE_ROLLUPS + "_time ON " + CANE_TABLE_ROLLUPS + "(level, time)");
+    }
+
+    //mean, min and max column names of every channel, in CHANNEL_ order
+    private static String rollupColumns() {
+        StringBuilder columns = new StringBuilder();
+        for (String name : KinematicData.CHANNEL_NAMES) {
+            columns.append(", ").append(name).append(ROLLUP_MEAN).append(", ").append(name).append(ROLLUP_MIN)
+                    .append(", ").append(name).append(ROLLUP_MAX);
+        }
+        return columns.substring(2);
+    }
+
+    //Ids are small, so device columns cost a byte or two per row instead of eight for a MAC
+    private static void createDevicesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CANE_TABLE_DEVICES + "(id integer primary key, mac integer unique not null, address text)");
+    }
+
+    //One row per device and hour, kept by HourlyAnalytics; count and means let partial hours merge
+    private static void createAnalyticsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CANE_TABLE_ANALYTICS + "(device integer not null default 0, time long, samples integer," +
+                "forceMax double, forceMean double, pitchMean double, rollMean double, forceVariance double," +
+                "pitchVariance double, rollVariance double, primary key (device, time))");
+    }
+
+    //time is the step's load onset
+    private static void createStepsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CANE_TABLE_STEPS + "(device integer not null default 0, time long, peakTime long," +
+                "peakForce double, duration long, impulse double, primary key (device, time))");
+    }
+
+    //A chunk spans at most ChunkCodec.MAX_SPAN_MS, so a range query only looks that far back on the time index.
+    //caneChunkScales holds the scales of version 1 chunks; later ones carry their own
+    private static void createChunkTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CANE_TABLE_CHUNKS + "(device integer not null default 0, time long, endTime long," +
+                "samples integer, data blob)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + CANE_TABLE_CHUNKS + "_time ON " + CANE_TABLE_CHUNKS + "(time)");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CANE_TABLE_CHUNK_SCALES + "(channel integer primary key, name text, scale double)");
+        for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+            ContentValues values = new ContentValues();
+            values.put(CANE_COLUMN_CHANNEL, c);
+            values.put(CANE_COLUMN_NAME, KinematicData.CHANNEL_NAMES[c]);
+            values.put(CANE_COLUMN_SCALE, ChunkCodec.SCALES[c]);
+            db.insertWithOnConflict(CANE_TABLE_CHUNK_SCALES, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        }
+    }
+
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + CANE_TABLE_ANALYTICS);
-        db.execSQL("DROP TABLE IF EXISTS " + CANE_TABLE_FULL);
-        db.execSQL("DROP TABLE IF EXISTS " + CANE_TABLE_SHORT);
-        onCreate(db);
+        //Upgrades in place; recordings are not thrown away
+        if (oldVersion < 2) {
+            //SQLite cannot change a primary key, so copy into a new table with existing rows as device 0
+            String columns = "time, force, acc_x, acc_y, acc_z, gyro_x, gyro_y, gyro_z, pitch, roll";
+            createFullTable(db, CANE_TABLE_FULL + "_v2");
+            db.execSQL("INSERT INTO " + CANE_TABLE_FULL + "_v2 (" + columns + ") SELECT " + columns + " FROM " + CANE_TABLE_FULL);
+            db.execSQL("DROP TABLE " + CANE_TABLE_FULL);
+            db.execSQL("ALTER TABLE " + CANE_TABLE_FULL + "_v2 RENAME TO " + CANE_TABLE_FULL);
+            db.execSQL("DROP INDEX IF EXISTS " + CANE_TABLE_FULL + "_v2_time");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + CANE_TABLE_FULL + "_time ON " + CANE_TABLE_FULL + "(time)");
+        } else if (oldVersion < 3) {
+            //The rebuild above already has the column
+            db.execSQL("ALTER TABLE " + CANE_TABLE_FULL + " ADD COLUMN distance double");
+        }
+        if (oldVersion < 4) {
+            //Nothing wrote the old per-hour table, so it is simply replaced
+            db.execSQL("DROP TABLE IF EXISTS " + CANE_TABLE_ANALYTICS);
+            createAnalyticsTable(db);
+        }
+        if (oldVersion < 5) {
+            createStepsTable(db);
+        }
+        if (oldVersion < 6) {
+            createChunkTables(db);
+        }
+        if (oldVersion < 7) {
+            //Device columns held MACs until now; give each its dictionary id
+            createDevicesTable(db);
+            String[] tables = {CANE_TABLE_FULL, CANE_TABLE_ANALYTICS, CANE_TABLE_STEPS, CANE_TABLE_CHUNKS};
+            for (String table : tables) {
+                db.execSQL("INSERT OR IGNORE INTO " + CANE_TABLE_DEVICES + " (mac) SELECT DISTINCT device FROM " + table + " WHERE device != 0");
+            }
+            Cursor res = db.rawQuery("SELECT id, mac FROM " + CANE_TABLE_DEVICES, null);
+            try {
+                while (res.moveToNext()) {
+                    db.execSQL("UPDATE " + CANE_TABLE_DEVICES + " SET address = '" + IngestLane.address(res.getLong(1))
+                            + "' WHERE id = " + res.getLong(0));
+                }
+            } finally {
+                res.close();
+            }
+            String toId = "coalesce((SELECT id FROM " + CANE_TABLE_DEVICES + " WHERE mac = device), 0)";
+            for (int i = 1; i < tables.length; i++) {
+                db.execSQL("UPDATE " + tables[i] + " SET device = " + toId);
+            }
+            //New primary key, so caneFull is copied like the version 2 upgrade; old rows were unique on (device, time)
+            String columns = "time, force, acc_x, acc_y, acc_z, gyro_x, gyro_y, gyro_z, pitch, roll, distance";
+            createFullTable(db, CANE_TABLE_FULL + "_v7");
+            db.execSQL("INSERT INTO " + CANE_TABLE_FULL + "_v7 (device, " + columns + ") SELECT " + toId + ", " + columns
+                    + " FROM " + CANE_TABLE_FULL);
+            db.execSQL("DROP TABLE " + CANE_TABLE_FULL);
+            db.execSQL("ALTER TABLE " + CANE_TABLE_FULL + "_v7 RENAME TO " + CANE_TABLE_FULL);
+            db.execSQL("DROP INDEX IF EXISTS " + CANE_TABLE_FULL + "_v7_time");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + CANE_TABLE_FULL + "_time ON " + CANE_TABLE_FULL + "(time)");
+        }
+        if (oldVersion < 8) {
+            createQuarantineTable(db);
+        }
+        if (oldVersion < 9) {
+            //Build the pyramid for what is already recorded; the StorageWriter keeps it up from here
+            createRollupsTable(db);
+            StringBuilder aggregates = new StringBuilder();
+            for (String name : KinematicData.CHANNEL_NAMES) {
+                aggregates.append(", avg(").append(name).append("), min(").append(name).append("), max(").append(name).append(")");
+            }
+            for (int level = 0; level < RollupPyramid.LEVELS_MS.length; level++) {
+                long ms = RollupPyramid.LEVELS_MS[level];
+                db.execSQL("INSERT INTO " + CANE_TABLE_ROLLUPS + " (level, device, time, samples, " + rollupColumns() + ") SELECT "
+                        + level + ", device, time - time % " + ms + ", count(*)" + aggregates + " FROM " + CANE_TABLE_FULL
+                        + " GROUP BY device, time - time % " + ms);
+            }
+            //Chunks can only be decoded here, so their samples go through a pyramid; device ids stand in for MACs
+            RollupPyramid pyramid = new RollupPyramid();
+            double[] scales = getChunkScales(db);
+            SampleBatch samples = new SampleBatch(1024);
+            Cursor res = db.rawQuery("SELECT device, time, samples, data FROM " + CANE_TABLE_CHUNKS + " ORDER BY time", null);
+            try {
+                while (res.moveToNext()) {
+                    samples.clear();
+                    ChunkCodec.decode(res.getLong(0), res.getLong(1), res.getInt(2), res.getBlob(3), scales,
+                            Long.MIN_VALUE, Long.MAX_VALUE, samples);
+                    pyramid.add(samples);
+                    mergeRollups(db, pyramid.takeClosed(), null);
+                }
+            } finally {
+                res.close();
+            }
+            pyramid.closeAll();
+            mergeRollups(db, pyramid.takeClosed(), null);
+        }
     }
 
     public void resetTable() { //Tested and functional
@@ -85,22 +310,210 @@ public class DBHelper extends SQLiteOpenHelper {
         /*db.execSQL("CREATE TABLE IF NOT EXISTS " + CANE_TABLE_FULL + "(time long primary key, force double, acc_x double, acc_y double, acc_z double," +
                 "gyro_x double, gyro_y double, gyro_z double, pitch double, roll double)");*/
         db.execSQL("DROP TABLE IF EXISTS " + CANE_TABLE_SHORT);
+        db.execSQL("DROP TABLE IF EXISTS " + CANE_TABLE_STEPS);
+        db.execSQL("DROP TABLE IF EXISTS " + CANE_TABLE_CHUNKS);
+        db.execSQL("DROP TABLE IF EXISTS " + CANE_TABLE_CHUNK_SCALES);
+        db.execSQL("DROP TABLE IF EXISTS " + CANE_TABLE_DEVICES);
+        db.execSQL("DROP TABLE IF EXISTS " + CANE_TABLE_QUARANTINE);
+        db.execSQL("DROP TABLE IF EXISTS " + CANE_TABLE_ROLLUPS);
+        synchronized (DBHelper.class) {
+            sDeviceKeys.clear();
+            sDeviceMacs.clear();
+        }
+        synchronized (sInsertLock) {
+            for (SQLiteStatement insert : sInserts.values()) {
+                insert.close();
+            }
+            sInserts.clear();
+            sDeleted.clear();
+        }
         onCreate(db);
     }
 
-    public static void deleteRows(long starttime, long endtime){
+    /**
+     * Deletes the samples with starttime <= time <= endtime. Chunks wholly inside the range are
+     * dropped; a chunk reaching past either end is decoded and written again without the samples
+     * inside it. In the same transaction the steps with their onset in the range are deleted, and
+     * the caneRollups and caneAnalytics rows of every hour the range touches are deleted and the
+     * two hours at its ends rebuilt from the samples left. Returns "Clear" or the error.
+     */
+    public static String deleteRows(long starttime, long endtime){
         SQLiteDatabase db = sInstance.getWritableDatabase();
-        db.beginTransaction();
+        String error = "Clear";
+        synchronized (sInsertLock) {    //Cut chunks are written with the compiled inserts
+            db.beginTransaction();
+            Cursor res = null;
+            try {
+                db.execSQL("DELETE FROM " + CANE_TABLE_FULL + " WHERE time >= " + Long.toString(starttime) +
+                        " AND time <= " + Long.toString(endtime));
+                String overlapping = " WHERE time <= " + Long.toString(endtime) + " AND endTime >= " + Long.toString(starttime);
+                double[] scales = getChunkScales(db);
+                SampleBatch decoded = new SampleBatch(ChunkCodec.MAX_SAMPLES);
+                SampleBatch kept = new SampleBatch(ChunkCodec.MAX_SAMPLES);
+                ChunkCodec codec = new ChunkCodec();
+                ArrayList<ChunkCodec.Chunk> chunks = new ArrayList<ChunkCodec.Chunk>();
+                res = db.rawQuery("select device, time, samples, data from " + CANE_TABLE_CHUNKS + overlapping
+                        + " AND (time < " + Long.toString(starttime) + " OR endTime > " + Long.toString(endtime)
+                        + ")", null);
+                while (res.moveToNext()) {
+                    //Decoded with the device key in place of the MAC; it is only carried back to the insert
+                    byte[] data = res.getBlob(3);
+                    decoded.clear();
+                    ChunkCodec.decode(res.getLong(0), res.getLong(1), res.getInt(2), data, scales,
+                            Long.MIN_VALUE, Long.MAX_VALUE, decoded);
+                    kept.clear();
+                    for (int i = 0; i < decoded.size; i++) {
+                        if (decoded.time[i] < starttime || decoded.time[i] > endtime) {
+                            kept.add(decoded, i);
+                        }
+                    }
+                    codec.setScales(ChunkCodec.scalesOf(data, scales));    //Cut, not requantized
+                    chunks.addAll(codec.encode(kept));
+                }
+                res.close();
+                res = null;
+                db.execSQL("DELETE FROM " + CANE_TABLE_CHUNKS + overlapping);
+                long[] keys = new long[chunks.size()];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = chunks.get(i).device;
+                }
+                insertChunkRows(db, chunks, keys);
+                deleteDerived(db, starttime, endtime);
+                db.setTransactionSuccessful();
+            }catch(Exception e){
+                error = e.getMessage();
+            }finally{
+                if (res != null) {
+                    res.close();
+                }
+                try {
+                    db.endTransaction();
+                } catch (Exception e) {
+                    error = "Commit failed: " + e.getMessage();
+                }
+            }
+            if ("Clear".equals(error)) {
+                addDeleted(starttime, endtime);
+            } else {
+                Log.w(TAG, "deleteRows: Nothing deleted: " + error);
+            }
+        }
+        return error;
+    }
+
+    /**
+     * The derived rows of deleteRows(), in its transaction. Hours are whole multiples of every
+     * rollup level, so rebuilding the end hours rebuilds every rollup bucket cut short.
+     */
+    private static void deleteDerived(SQLiteDatabase db, long starttime, long endtime) {
+        long from = starttime - starttime % HourlyAnalytics.HOUR_MS;
+        long lastHour = endtime - endtime % HourlyAnalytics.HOUR_MS;
+        String hours = " AND time >= " + Long.toString(from) + " AND time < " + Long.toString(lastHour + HourlyAnalytics.HOUR_MS);
+        for (int level = 0; level < RollupPyramid.LEVELS_MS.length; level++) {
+            db.execSQL("DELETE FROM " + CANE_TABLE_ROLLUPS + " WHERE level = " + level + hours);
+        }
+        db.execSQL("DELETE FROM " + CANE_TABLE_ANALYTICS + " WHERE" + hours.substring(4));
+        db.execSQL("DELETE FROM " + CANE_TABLE_STEPS + " WHERE time >= " + Long.toString(starttime) + " AND time <= "
+                + Long.toString(endtime));
+        long[] ends = from == lastHour ? new long[]{from} : new long[]{from, lastHour};
+        for (long hour : ends) {
+            RollupPyramid pyramid = new RollupPyramid();
+            HourlyAnalytics analytics = new HourlyAnalytics();
+            foldSamples(db, "", hour, hour + HourlyAnalytics.HOUR_MS, pyramid, analytics);
+            pyramid.closeAll();
+            List<RollupPyramid.Bucket> buckets = pyramid.takeClosed();
+            long[] keys = new long[buckets.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = findDeviceKey(buckets.get(i).device);     //Read back from stored samples, so known
+            }
+            mergeRollups(db, buckets, keys);
+            analytics.closeAll();
+            List<HourlyAnalytics.Hour> closed = analytics.takeClosed();
+            keys = new long[closed.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = findDeviceKey(closed.get(i).device);
+            }
+            mergeAnalytics(db, closed, keys);
+        }
+    }
+
+    //Feeds the caneFull rows and chunk samples with min <= time < max that match where to pyramid and analytics, either may be null
+    private static void foldSamples(SQLiteDatabase db, String where, long min, long max, RollupPyramid pyramid,
+                                    HourlyAnalytics analytics) {
+        SampleProjection projection = new SampleProjection(SampleProjection.ALL_CHANNELS);
+        SampleBatch scratch = new SampleBatch(1024);
+        Cursor res = db.rawQuery("select " + projection.columns() + " from " + CANE_TABLE_FULL + " WHERE " + where + "time >= "
+                + Long.toString(min) + " AND time < " + Long.toString(max) + " ORDER BY device, time", null);
+        try {
+            res.moveToFirst();
+            while (!res.isAfterLast()) {
+                scratch.clear();
+                projection.read(res, scratch, scratch.capacity());
+                if (pyramid != null) {
+                    pyramid.add(scratch);
+                }
+                if (analytics != null) {
+                    analytics.add(scratch);
+                }
+            }
+        } finally {
+            res.close();
+        }
+        double[] scales = getChunkScales(db);
+        res = queryChunks(db, where, min, max);
         try {
-            db.execSQL("DELETE FROM " + CANE_TABLE_FULL + " WHERE time >= " + Long.toString(starttime) +
-                    " AND time <= " + Long.toString(endtime));
+            while (res.moveToNext()) {
+                scratch.clear();
+                ChunkCodec.decode(deviceMac(res.getLong(0)), res.getLong(1), res.getInt(2), res.getBlob(3),
+                        scales, min, max, scratch);
+                if (pyramid != null) {
+                    pyramid.add(scratch);
+                }
+                if (analytics != null) {
+                    analytics.add(scratch);
+                }
+            }
+        } finally {
+            res.close();
+        }
+    }
 
-            db.setTransactionSuccessful();
-        }catch(Exception e){
-            Log.d(TAG,e.getMessage());
-        }finally{
-            db.endTransaction();
+    //Records a range deleteRows() cut, merged with those it overlaps; callers hold sInsertLock
+    private static void addDeleted(long starttime, long endtime) {
+        for (int i = sDeleted.size() - 1; i >= 0; i--) {
+            long[] range = sDeleted.get(i);
+            if (range[0] <= endtime && range[1] >= starttime) {
+                starttime = Math.min(starttime, range[0]);
+                endtime = Math.max(endtime, range[1]);
+                sDeleted.remove(i);
+            }
         }
+        sDeleted.add(new long[]{starttime, endtime});
+    }
+
+    /**
+     * Whether deleteRows() rebuilt or cleared the derived rows of [from, to): it overlaps the hours
+     * of a range that was cut. Callers hold sInsertLock.
+     */
+    private static boolean rebuiltByDelete(long from, long to) {
+        for (long[] range : sDeleted) {
+            long start = range[0] - range[0] % HourlyAnalytics.HOUR_MS;
+            long end = range[1] - range[1] % HourlyAnalytics.HOUR_MS + HourlyAnalytics.HOUR_MS;
+            if (from < end && to > start) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Whether deleteRows() cut time; callers hold sInsertLock
+    private static boolean cutByDelete(long time) {
+        for (long[] range : sDeleted) {
+            if (time >= range[0] && time <= range[1]) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public int getFullTableCount() //Tested and functional, but not tested to limits of full DB
@@ -129,83 +542,709 @@ public class DBHelper extends SQLiteOpenHelper {
         }
     }
     //bulk insert raw data
-    public static String fullInsertLoop(KinematicData[] caneArr) { //Inserts values for all available columns
+    public static String fullInsertLoop(SampleBatch batch) { //Inserts values for all available columns
+        return fullInsertLoop(batch, ConflictPolicy.QUARANTINE);
+    }
+
+    /**
+     * Inserts a batch into caneFull in one transaction, binding straight from the batch columns
+     * into compiled statements (InsertBenchmark measures the gain). Rows are keyed by the seqs
+     * they carry, so a row whose key is taken is the same sample again; it is handled by policy
+     * (see ConflictPolicy) without disturbing the rest of the batch. Only other errors (disk full,
+     * database closed) fail the batch, whose error message is then returned instead of "Clear".
+     * IGNORE makes re-inserting rows that already exist harmless (journal replay).
+     */
+    public static String fullInsertLoop(SampleBatch batch, ConflictPolicy policy) {
+        return fullInsertLoop(batch, policy, null);
+    }
+
+    /**
+     * As fullInsertLoop(batch, policy), and if the batch commits, the rows that were added to
+     * caneFull as new rows (not ignored, replaced, quarantined or duplicates) are appended to inserted, for
+     * whatever is derived from the stored samples. inserted may be null.
+     */
+    public static String fullInsertLoop(SampleBatch batch, ConflictPolicy policy, SampleBatch inserted) {
         SQLiteDatabase db = sInstance.getWritableDatabase();
         String error = "Clear";
-        int failure = 0;
-        db.beginTransaction();
+        long[] keys = new long[batch.size];
+        int start = inserted == null ? 0 : inserted.size;
+        if (inserted != null) {
+            inserted.ensureCapacity(start + batch.size);
+        }
         try {
-            for (int i = 0; i < caneArr.length; i++) {
-                if (caneArr[i] == null) {
-                    continue;
+            assignKeys(db, batch, keys);
+        } catch (Exception e) {
+            return e.getMessage();
+        }
+        synchronized (sInsertLock) {
+            long added = 0;
+            long ignored = 0;
+            long replaced = 0;
+            long quarantined = 0;
+            long duplicates = 0;
+            db.beginTransaction();
+            try {
+                //OR IGNORE reports a conflict by returning -1; plain INSERT throws, undoing only that row
+                SQLiteStatement insert = insertStatement(db, CANE_TABLE_FULL, FULL_COLUMNS,
+                        policy == ConflictPolicy.IGNORE ? SQLiteDatabase.CONFLICT_IGNORE : SQLiteDatabase.CONFLICT_ABORT);
+                for (int i = 0; i < batch.size; i++) {
+                    bindFull(insert, batch, i, keys[i]);
+                    try {
+                        if (insert.executeInsert() == -1) {
+                            ignored++;
+                        } else {
+                            added++;
+                            if (inserted != null) {
+                                inserted.add(batch, i);
+                            }
+                        }
+                    } catch (SQLiteConstraintException e) {
+                        if (sameAsStored(db, batch, i, keys[i])) {
+                            duplicates++;
+                        } else if (policy == ConflictPolicy.REPLACE) {
+                            SQLiteStatement replace = insertStatement(db, CANE_TABLE_FULL, FULL_COLUMNS,
+                                    SQLiteDatabase.CONFLICT_REPLACE);
+                            bindFull(replace, batch, i, keys[i]);
+                            replace.executeInsert();
+                            replaced++;
+                        } else {
+                            SQLiteStatement divert = insertStatement(db, CANE_TABLE_QUARANTINE,
+                                    FULL_COLUMNS + ", reason, quarantined", SQLiteDatabase.CONFLICT_ABORT);
+                            bindFull(divert, batch, i, keys[i]);
+                            divert.bindString(14, String.valueOf(e.getMessage()));
+                            divert.bindLong(15, System.currentTimeMillis());
+                            divert.executeInsert();
+                            quarantined++;
+                        }
+                    }
+                }
+                db.setTransactionSuccessful();
+                sInsertStats.inserted += added;
+                sInsertStats.ignored += ignored;
+                sInsertStats.replaced += replaced;
+                sInsertStats.quarantined += quarantined;
+                sInsertStats.duplicates += duplicates;
+                if (quarantined > 0) {
+                    Log.w(TAG, "fullInsertLoop: " + quarantined + " rows differing from the stored ones quarantined");
+                }
+            } catch (Exception e) {
+                error = e.getMessage();
+            } finally {
+                try {
+                    db.endTransaction();
+                } catch (Exception e) {
+                    error = "Commit failed: " + e.getMessage();
                 }
-                //int idIn = (int) (caneArr[i].time % 1000000000L);
-                ContentValues values = new ContentValues();
-                values.put(CANE_COLUMN_TIME, caneArr[i].time);
-                values.put(CANE_COLUMN_FORCE, caneArr[i].force);
-                values.put(CANE_COLUMN_ACC_X, caneArr[i].accx);
-                values.put(CANE_COLUMN_ACC_Y, caneArr[i].accy);
-                values.put(CANE_COLUMN_ACC_Z, caneArr[i].accz);
-                values.put(CANE_COLUMN_GYRO_X, caneArr[i].gyrox);
-                values.put(CANE_COLUMN_GYRO_Y, caneArr[i].gyroy);
-                values.put(CANE_COLUMN_GYRO_Z, caneArr[i].gyroz);
-                values.put(CANE_COLUMN_ANGLE_PITCH, caneArr[i].pitch);
-                values.put(CANE_COLUMN_ANGLE_ROLL, caneArr[i].roll);
-
-                db.insertOrThrow(CANE_TABLE_FULL, null, values);
             }
-            db.setTransactionSuccessful();
-        } catch (Exception e) {
-            //db.endTransaction();
-            failure = 1;
-            error = e.getMessage();
+            if (!"Clear".equals(error)) {
+                sInsertStats.failedBatches++;
+                if (inserted != null) {
+                    inserted.size = start;  //Rolled back
+                }
+            }
+        }
+        return error;
+    }
+
+    //Whether caneFull holds row i of batch under its key with the same values
+    private static boolean sameAsStored(SQLiteDatabase db, SampleBatch batch, int i, long key) {
+        Cursor res = db.rawQuery("SELECT " + FULL_COLUMNS + " FROM " + CANE_TABLE_FULL + " WHERE device = " + key
+                + " AND time = " + batch.time[i] + " AND seq = " + batch.seq[i], null);
+        try {
+            if (!res.moveToFirst()) {
+                return false;
+            }
+            for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                if ((float) res.getDouble(3 + c) != batch.channels[c][i]) {
+                    return false;
+                }
+            }
+            return true;
         } finally {
-            db.endTransaction();
-           //db.close();
+            res.close();
+        }
+    }
+
+    //Binds a caneFull row in FULL_COLUMNS order, keyed by the seq the row came with
+    private static void bindFull(SQLiteStatement insert, SampleBatch batch, int i, long key) {
+        insert.bindLong(1, key);
+        insert.bindLong(2, batch.time[i]);
+        insert.bindLong(3, batch.seq[i]);
+        for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+            insert.bindDouble(4 + c, batch.channels[c][i]);
+        }
+    }
+
+    public static InsertStats getInsertStats() {
+        InsertStats stats = new InsertStats();
+        synchronized (sInsertLock) {
+            stats.inserted = sInsertStats.inserted;
+            stats.ignored = sInsertStats.ignored;
+            stats.replaced = sInsertStats.replaced;
+            stats.quarantined = sInsertStats.quarantined;
+            stats.duplicates = sInsertStats.duplicates;
+            stats.failedBatches = sInsertStats.failedBatches;
+        }
+        return stats;
+    }
+
+    //Compiled "INSERT [OR conflict] INTO table (columns) VALUES (?, ...)", kept for reuse; callers hold sInsertLock
+    private static SQLiteStatement insertStatement(SQLiteDatabase db, String table, String columns, int conflictAlgorithm) {
+        String key = table + CONFLICT_CLAUSES[conflictAlgorithm];
+        SQLiteStatement insert = sInserts.get(key);
+        if (insert == null) {
+            StringBuilder sql = new StringBuilder("INSERT").append(CONFLICT_CLAUSES[conflictAlgorithm]).append(" INTO ")
+                    .append(table).append(" (").append(columns).append(") VALUES (?");
+            for (int i = 0; i < columns.length(); i++) {
+                if (columns.charAt(i) == ',') {
+                    sql.append(", ?");
+                }
+            }
+            insert = db.compileStatement(sql.append(')').toString());
+            sInserts.put(key, insert);
+        }
+        return insert;
+    }
+
+    /**
+     * Encodes rows with codec and inserts the chunks in one transaction, leaving out samples
+     * caneChunks already holds (counted as duplicates), so replaying committed rows from the
+     * journal stores nothing twice. Chunks keep no seqs; as IngestLane counts seqs up from 0
+     * within a millisecond, a row is taken as stored if its device has more than seq chunked
+     * samples at its time. stored is cleared and, if the transaction commits, holds the rows
+     * written. Returns "Clear" or the error.
+     */
+    public static String insertChunks(SampleBatch rows, ChunkCodec codec, SampleBatch stored) {
+        SQLiteDatabase db = sInstance.getWritableDatabase();
+        String error = "Clear";
+        long[] keys = new long[rows.size];
+        stored.clear();
+        try {
+            assignKeys(db, rows, keys);
+        } catch (Exception e) {
+            return e.getMessage();
+        }
+        synchronized (sInsertLock) {
+            db.beginTransaction();
+            try {
+                keepUnstored(db, rows, keys, stored);
+                List<ChunkCodec.Chunk> chunks = codec.encode(stored);
+                long[] chunkKeys = new long[chunks.size()];
+                for (int i = 0; i < chunkKeys.length; i++) {
+                    chunkKeys[i] = deviceKey(db, chunks.get(i).device);     //Cached by assignKeys
+                }
+                insertChunkRows(db, chunks, chunkKeys);
+                db.setTransactionSuccessful();
+            } catch (Exception e) {
+                error = e.getMessage();
+            } finally {
+                try {
+                    db.endTransaction();
+                } catch (Exception e) {
+                    error = "Commit failed: " + e.getMessage();
+                }
+            }
+            if ("Clear".equals(error)) {
+                sInsertStats.duplicates += rows.size - stored.size;
+            } else {
+                stored.clear();     //Rolled back
+            }
         }
         return error;
     }
-    //Pull chunks of raw data
-    public KinematicData[] getFullHour(long hour, long interval) { //Tested and functional
-        long min = hour;
-        long max = hour + interval;
+
+    //Appends the rows of batch that caneChunks does not hold yet to out, see insertChunks()
+    private static void keepUnstored(SQLiteDatabase db, SampleBatch batch, long[] keys, SampleBatch out) {
+        HashMap<Long, long[]> ranges = new HashMap<Long, long[]>();     //Min and max time per device key
+        for (int i = 0; i < batch.size; i++) {
+            long[] range = ranges.get(keys[i]);
+            if (range == null) {
+                ranges.put(keys[i], new long[]{batch.time[i], batch.time[i]});
+            } else {
+                range[0] = Math.min(range[0], batch.time[i]);
+                range[1] = Math.max(range[1], batch.time[i]);
+            }
+        }
+        double[] scales = getChunkScales(db);
+        SampleBatch decoded = null;
+        HashMap<Long, HashMap<Long, Integer>> storedCounts = new HashMap<Long, HashMap<Long, Integer>>();
+        for (Map.Entry<Long, long[]> range : ranges.entrySet()) {
+            long key = range.getKey();
+            Cursor res = queryChunks(db, "device = " + key + " AND ", range.getValue()[0], range.getValue()[1] + 1);
+            try {
+                while (res.moveToNext()) {
+                    if (decoded == null) {
+                        decoded = new SampleBatch(ChunkCodec.MAX_SAMPLES);
+                    }
+                    decoded.clear();
+                    ChunkCodec.decode(key, res.getLong(1), res.getInt(2), res.getBlob(3), scales,
+                            range.getValue()[0], range.getValue()[1] + 1, decoded);
+                    HashMap<Long, Integer> counts = storedCounts.get(key);
+                    if (counts == null) {
+                        counts = new HashMap<Long, Integer>();
+                        storedCounts.put(key, counts);
+                    }
+                    for (int i = 0; i < decoded.size; i++) {
+                        Integer n = counts.get(decoded.time[i]);
+                        counts.put(decoded.time[i], n == null ? 1 : n + 1);
+                    }
+                }
+            } finally {
+                res.close();
+            }
+        }
+        out.ensureCapacity(out.size + batch.size);
+        for (int i = 0; i < batch.size; i++) {
+            HashMap<Long, Integer> counts = storedCounts.get(keys[i]);
+            Integer n = counts == null ? null : counts.get(batch.time[i]);
+            if (n == null || batch.seq[i] >= n) {
+                out.add(batch, i);
+            }
+        }
+    }
+
+    //Inserts chunks under the device keys; callers hold sInsertLock and a transaction
+    private static void insertChunkRows(SQLiteDatabase db, List<ChunkCodec.Chunk> chunks, long[] keys) {
+        SQLiteStatement insert = insertStatement(db, CANE_TABLE_CHUNKS, "device, time, endTime, samples, data",
+                SQLiteDatabase.CONFLICT_ABORT);
+        for (int i = 0; i < keys.length; i++) {
+            ChunkCodec.Chunk chunk = chunks.get(i);
+            insert.bindLong(1, keys[i]);
+            insert.bindLong(2, chunk.time);
+            insert.bindLong(3, chunk.endTime);
+            insert.bindLong(4, chunk.samples);
+            insert.bindBlob(5, chunk.data);
+            insert.executeInsert();
+        }
+    }
+
+    //Appends the chunked samples with min <= time < max to out; returns the number appended
+    public int getChunkSamples(long min, long max, SampleBatch out) {
+        return getChunkSamples("", min, max, out);
+    }
+
+    private int getChunkSamples(String where, long min, long max, SampleBatch out) {
         SQLiteDatabase db = this.getReadableDatabase();
-        KinematicData[] caneArr = null;
-        synchronized (this) {
+        double[] scales = getChunkScales(db);
+        int appended = 0;
+        Cursor res = null;
+        try {
+            res = queryChunks(db, where, min, max);
+            while (res.moveToNext()) {
+                appended += ChunkCodec.decode(deviceMac(res.getLong(0)), res.getLong(1), res.getInt(2), res.getBlob(3),
+                        scales, min, max, out);
+            }
+        } catch (Exception e) {
+            Log.d(TAG, "getChunkSamples: " + e.getMessage());
+        } finally {
+            if (res != null) {
+                res.close();
+            }
+        }
+        return appended;
+    }
+
+    //device, time, samples, data of the chunks that may hold samples in [min, max)
+    private static Cursor queryChunks(SQLiteDatabase db, String where, long min, long max) {
+        return db.rawQuery("select device, time, samples, data from " + CANE_TABLE_CHUNKS + " WHERE " + where + "time > "
+                + Long.toString(min - ChunkCodec.MAX_SPAN_MS) + " AND time < " + Long.toString(max)
+                + " AND endTime >= " + Long.toString(min) + " ORDER BY time", null);
+    }
+
+    private static double[] getChunkScales(SQLiteDatabase db) {
+        double[] scales = sChunkScales;
+        if (scales != null) {
+            return scales;
+        }
+        scales = ChunkCodec.SCALES.clone();
+        Cursor res = db.rawQuery("select channel, scale from " + CANE_TABLE_CHUNK_SCALES, null);
+        try {
+            while (res.moveToNext()) {
+                int channel = res.getInt(0);
+                if (channel >= 0 && channel < scales.length) {
+                    scales[channel] = res.getDouble(1);
+                }
+            }
+        } finally {
+            res.close();
+        }
+        sChunkScales = scales;
+        return scales;
+    }
+
+    /**
+     * Fills keys with the caneDevices id of each row's device, adding ids for new devices. Must
+     * be called outside a transaction, so a rolled back insert cannot take a cached id with it.
+     */
+    private static synchronized void assignKeys(SQLiteDatabase db, SampleBatch batch, long[] keys) {
+        long key = 0;
+        for (int i = 0; i < batch.size; i++) {
+            if (i == 0 || batch.device[i] != batch.device[i - 1]) {
+                key = deviceKey(db, batch.device[i]);
+            }
+            keys[i] = key;
+        }
+    }
+
+    //caneDevices id for a MAC, added if new; outside a transaction, see assignKeys()
+    public static synchronized long deviceKey(long mac) {
+        return deviceKey(sInstance.getWritableDatabase(), mac);
+    }
+
+    //caneDevices id for a MAC, or -1 (which no row has) if the device never stored anything
+    public static synchronized long findDeviceKey(long mac) {
+        Long known = sDeviceKeys.get(mac);
+        if (mac == 0 || known != null) {
+            return mac == 0 ? 0 : known;
+        }
+        long id = -1;
+        Cursor res = sInstance.getReadableDatabase().rawQuery("SELECT id FROM " + CANE_TABLE_DEVICES + " WHERE mac = " + mac, null);
+        try {
+            if (res.moveToFirst()) {
+                id = res.getLong(0);
+            }
+        } finally {
+            res.close();
+        }
+        return id;
+    }
+
+    private static synchronized long deviceKey(SQLiteDatabase db, long mac) {
+        Long known = sDeviceKeys.get(mac);
+        if (known != null) {
+            return known;
+        }
+        long id = 0;
+        if (mac != 0) {
+            Cursor res = db.rawQuery("SELECT id FROM " + CANE_TABLE_DEVICES + " WHERE mac = " + mac, null);
+            try {
+                id = res.moveToFirst() ? res.getLong(0) : -1;
+            } finally {
+                res.close();
+            }
+            if (id < 0) {
+                ContentValues values = new ContentValues();
+                values.put(CANE_COLUMN_MAC, mac);
+                values.put(CANE_COLUMN_ADDRESS, IngestLane.address(mac));
+                id = db.insertOrThrow(CANE_TABLE_DEVICES, null, values);
+            }
+        }
+        sDeviceKeys.put(mac, id);
+        sDeviceMacs.put(id, mac);
+        return id;
+    }
+
+    //MAC (IngestLane.deviceId) for a caneDevices id, 0 if unknown
+    public static synchronized long deviceMac(long id) {
+        Long mac = sDeviceMacs.get(id);
+        if (mac != null) {
+            return mac;
+        }
+        long found = 0;
+        Cursor res = sInstance.getReadableDatabase().rawQuery("SELECT mac FROM " + CANE_TABLE_DEVICES + " WHERE id = " + id, null);
+        try {
+            if (res.moveToFirst()) {
+                found = res.getLong(0);
+            }
+        } finally {
+            res.close();
+        }
+        if (found != 0 || id == 0) {
+            sDeviceMacs.put(id, found);
+        }
+        return found;
+    }
+
+    //Merges closed hours into their caneAnalytics rows, combining with what earlier writes stored
+    public static String mergeAnalytics(List<HourlyAnalytics.Hour> hours) {
+        SQLiteDatabase db = sInstance.getWritableDatabase();
+        String error = "Clear";
+        long[] keys = new long[hours.size()];
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = deviceKey(hours.get(i).device);
+            }
+        } catch (Exception e) {
+            return e.getMessage();
+        }
+        //Read, merge and write back without deleteRows() or another merge in between
+        synchronized (sInsertLock) {
             db.beginTransaction();
-            Cursor res = null;
             try {
-                res = db.rawQuery("select * from " + CANE_TABLE_FULL + " WHERE time >= " + Long.toString(min)
-                        + " AND time < " + Long.toString(max), null);
-                res.moveToFirst();
-                caneArr = new KinematicData[res.getCount()];
-                int rowNum = 0;
+                ArrayList<HourlyAnalytics.Hour> merged = new ArrayList<HourlyAnalytics.Hour>(hours.size());
+                ArrayList<Long> mergedKeys = new ArrayList<Long>(hours.size());
+                for (int i = 0; i < keys.length; i++) {
+                    HourlyAnalytics.Hour hour = hours.get(i);
+                    if (rebuiltByDelete(hour.hour, hour.hour + HourlyAnalytics.HOUR_MS)) {
+                        rebuildHour(db, keys[i], hour.hour);
+                    } else {
+                        merged.add(hour);
+                        mergedKeys.add(keys[i]);
+                    }
+                }
+                mergeAnalytics(db, merged, toArray(mergedKeys));
+                db.setTransactionSuccessful();
+            } catch (Exception e) {
+                error = e.getMessage();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        return error;
+    }
 
-                while (res.isAfterLast() == false) {
-                    long time = Long.parseLong(res.getString(res.getColumnIndex(CANE_COLUMN_TIME)));
-                    double force = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_FORCE)));
-                    double accx = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ACC_X)));
-                    double accy = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ACC_Y)));
-                    double accz = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ACC_Z)));
-                    double gyrox = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_GYRO_X)));
-                    double gyroy = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_GYRO_Y)));
-                    double gyroz = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_GYRO_Z)));
-                    double pitch = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ANGLE_PITCH)));
-                    double roll = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ANGLE_ROLL)));
-                    caneArr[rowNum] = new KinematicData(time, accx, accy, accz, gyrox, gyroy, gyroz, pitch, roll, force);
-                    rowNum++;
-                    res.moveToNext();
+    //mergeAnalytics() inside the caller's transaction, under the given caneDevices ids
+    private static void mergeAnalytics(SQLiteDatabase db, List<HourlyAnalytics.Hour> hours, long[] keys) {
+        for (int i = 0; i < keys.length; i++) {
+            HourlyAnalytics.Hour hour = hours.get(i);
+            HourlyAnalytics.Hour merged = new HourlyAnalytics.Hour(keys[i], hour.hour);
+            Cursor res = db.rawQuery("SELECT samples, forceMax, forceMean, forceVariance, pitchMean, pitchVariance," +
+                    " rollMean, rollVariance FROM " + CANE_TABLE_ANALYTICS + " WHERE device = " + keys[i] +
+                    " AND time = " + hour.hour, null);
+            try {
+                if (res.moveToFirst()) {
+                    merged.merge(res.getLong(0), res.getDouble(1), res.getDouble(2), res.getDouble(3),
+                            res.getDouble(4), res.getDouble(5), res.getDouble(6), res.getDouble(7));
                 }
+            } finally {
+                res.close();
+            }
+            merged.merge(hour.samples, hour.forceMax, hour.forceMean, hour.getForceVariance(), hour.pitchMean,
+                    hour.getPitchVariance(), hour.rollMean, hour.getRollVariance());
+            ContentValues values = new ContentValues();
+            values.put(CANE_COLUMN_DEVICE, merged.device);
+            values.put(CANE_COLUMN_TIME, merged.hour);
+            values.put(CANE_COLUMN_SAMPLES, merged.samples);
+            values.put(CANE_COLUMN_FORCE_MAX, merged.forceMax);
+            values.put(CANE_COLUMN_FORCE_MEAN, merged.forceMean);
+            values.put(CANE_COLUMN_PITCH_MEAN, merged.pitchMean);
+            values.put(CANE_COLUMN_ROLL_MEAN, merged.rollMean);
+            values.put(CANE_COLUMN_FORCE_VARIANCE, merged.getForceVariance());
+            values.put(CANE_COLUMN_PITCH_VARIANCE, merged.getPitchVariance());
+            values.put(CANE_COLUMN_ROLL_VARIANCE, merged.getRollVariance());
+            db.insertWithOnConflict(CANE_TABLE_ANALYTICS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+    }
+
+    /**
+     * Replaces a device's caneAnalytics row for hour with one computed from its stored samples.
+     * A partial hour overlapping a deleteRows() range is written this way: its samples were
+     * already counted when that hour was rebuilt, so merging them in would count them twice.
+     */
+    private static void rebuildHour(SQLiteDatabase db, long key, long hour) {
+        db.execSQL("DELETE FROM " + CANE_TABLE_ANALYTICS + " WHERE device = " + key + " AND time = " + hour);
+        HourlyAnalytics analytics = new HourlyAnalytics();
+        foldSamples(db, "device = " + key + " AND ", hour, hour + HourlyAnalytics.HOUR_MS, null, analytics);
+        analytics.closeAll();
+        List<HourlyAnalytics.Hour> closed = analytics.takeClosed();
+        long[] keys = new long[closed.size()];
+        Arrays.fill(keys, key);
+        mergeAnalytics(db, closed, keys);
+    }
+
+    /**
+     * Replaces a device's caneRollups row for one bucket with one computed from its stored
+     * samples, for the same reason as rebuildHour().
+     */
+    private static void rebuildRollup(SQLiteDatabase db, long key, int level, long time) {
+        db.execSQL("DELETE FROM " + CANE_TABLE_ROLLUPS + " WHERE level = " + level + " AND device = " + key
+                + " AND time = " + time);
+        RollupPyramid pyramid = new RollupPyramid();
+        foldSamples(db, "device = " + key + " AND ", time, time + RollupPyramid.LEVELS_MS[level], pyramid, null);
+        pyramid.closeAll();
+        ArrayList<RollupPyramid.Bucket> buckets = new ArrayList<RollupPyramid.Bucket>();
+        for (RollupPyramid.Bucket bucket : pyramid.takeClosed()) {
+            if (bucket.level == level && bucket.time == time) {
+                buckets.add(bucket);
+            }
+        }
+        long[] keys = new long[buckets.size()];
+        Arrays.fill(keys, key);
+        mergeRollups(db, buckets, keys);
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    //Merges closed rollup buckets into their caneRollups rows, combining with what earlier writes stored
+    public static String mergeRollups(List<RollupPyramid.Bucket> buckets) {
+        SQLiteDatabase db = sInstance.getWritableDatabase();
+        String error = "Clear";
+        long[] keys = new long[buckets.size()];
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = deviceKey(buckets.get(i).device);
+            }
+        } catch (Exception e) {
+            return e.getMessage();
+        }
+        synchronized (sInsertLock) {
+            db.beginTransaction();
+            try {
+                ArrayList<RollupPyramid.Bucket> merged = new ArrayList<RollupPyramid.Bucket>(buckets.size());
+                ArrayList<Long> mergedKeys = new ArrayList<Long>(buckets.size());
+                for (int i = 0; i < keys.length; i++) {
+                    RollupPyramid.Bucket bucket = buckets.get(i);
+                    if (rebuiltByDelete(bucket.time, bucket.end())) {
+                        rebuildRollup(db, keys[i], bucket.level, bucket.time);
+                    } else {
+                        merged.add(bucket);
+                        mergedKeys.add(keys[i]);
+                    }
+                }
+                mergeRollups(db, merged, toArray(mergedKeys));
                 db.setTransactionSuccessful();
             } catch (Exception e) {
+                error = e.getMessage();
             } finally {
-                if (res != null) {
-                    res.close();
+                db.endTransaction();
+            }
+        }
+        return error;
+    }
+
+    //mergeRollups() inside the caller's transaction; keys null if the buckets already carry device ids
+    private static void mergeRollups(SQLiteDatabase db, List<RollupPyramid.Bucket> buckets, long[] keys) {
+        String columns = rollupColumns();
+        double[] means = new double[KinematicData.CHANNEL_COUNT];
+        double[] mins = new double[KinematicData.CHANNEL_COUNT];
+        double[] maxes = new double[KinematicData.CHANNEL_COUNT];
+        SQLiteStatement insert = insertStatement(db, CANE_TABLE_ROLLUPS, "level, device, time, samples, " + columns,
+                SQLiteDatabase.CONFLICT_REPLACE);
+        for (int i = 0; i < buckets.size(); i++) {
+            RollupPyramid.Bucket bucket = buckets.get(i);
+            long key = keys != null ? keys[i] : bucket.device;
+            RollupPyramid.Bucket merged = new RollupPyramid.Bucket(key, bucket.level, bucket.time);
+            Cursor res = db.rawQuery("SELECT samples, " + columns + " FROM " + CANE_TABLE_ROLLUPS + " WHERE level = "
+                    + bucket.level + " AND device = " + key + " AND time = " + bucket.time, null);
+            try {
+                if (res.moveToFirst()) {
+                    for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                        means[c] = res.getDouble(1 + 3 * c);
+                        mins[c] = res.getDouble(2 + 3 * c);
+                        maxes[c] = res.getDouble(3 + 3 * c);
+                    }
+                    merged.merge(res.getLong(0), means, mins, maxes);
+                }
+            } finally {
+                res.close();
+            }
+            merged.merge(bucket.samples, bucket.mean, bucket.min, bucket.max);
+            insert.bindLong(1, merged.level);
+            insert.bindLong(2, merged.device);
+            insert.bindLong(3, merged.time);
+            insert.bindLong(4, merged.samples);
+            for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                insert.bindDouble(5 + 3 * c, merged.mean[c]);
+                insert.bindDouble(6 + 3 * c, merged.min[c]);
+                insert.bindDouble(7 + 3 * c, merged.max[c]);
+            }
+            insert.executeInsert();
+        }
+    }
+
+    public static String insertSteps(List<StepDetector.Step> steps) {
+        SQLiteDatabase db = sInstance.getWritableDatabase();
+        String error = "Clear";
+        long[] keys = new long[steps.size()];
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = deviceKey(steps.get(i).device);
+            }
+        } catch (Exception e) {
+            return e.getMessage();
+        }
+        //Not between deleteRows() clearing a range and its commit
+        synchronized (sInsertLock) {
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < keys.length; i++) {
+                    StepDetector.Step step = steps.get(i);
+                    if (cutByDelete(step.onset)) {
+                        continue;   //Its samples are gone
+                    }
+                    ContentValues values = new ContentValues();
+                    values.put(CANE_COLUMN_DEVICE, keys[i]);
+                    values.put(CANE_COLUMN_TIME, step.onset);
+                    values.put(CANE_COLUMN_PEAK_TIME, step.peakTime);
+                    values.put(CANE_COLUMN_PEAK_FORCE, step.peakForce);
+                    values.put(CANE_COLUMN_DURATION, step.duration);
+                    values.put(CANE_COLUMN_IMPULSE, step.impulse);
+                    db.insertWithOnConflict(CANE_TABLE_STEPS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
                 }
+                db.setTransactionSuccessful();
+            } catch (Exception e) {
+                error = e.getMessage();
+            } finally {
                 db.endTransaction();
-                return caneArr;
             }
         }
+        return error;
+    }
+
+    //Pull chunks of raw data
+    public SampleBatch getFullHour(long hour, long interval, SampleBatch out) { //Tested and functional
+        return getRange(hour, hour + interval, SampleProjection.ALL_CHANNELS, out);
+    }
+
+    /**
+     * Reads every device's samples with min <= time < max, rows then chunks, into out (cleared
+     * first, or a new batch if null) and returns it, or null if the read failed. Only the given
+     * channels are read; the others are zero.
+     */
+    public SampleBatch getRange(long min, long max, int[] channels, SampleBatch out) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        SampleProjection projection = new SampleProjection(channels);
+        SampleBatch caneArr = out != null ? out : new SampleBatch(1024);
+        caneArr.clear();
+        Cursor res = null;
+        try {
+            res = db.rawQuery("select " + projection.columns() + " from " + CANE_TABLE_FULL + " WHERE time >= "
+                    + Long.toString(min) + " AND time < " + Long.toString(max), null);
+            res.moveToFirst();
+            projection.read(res, caneArr);
+        } catch (Exception e) {
+            Log.d(TAG, "getRange: " + e.getMessage());
+            return null;
+        } finally {
+            if (res != null) {
+                res.close();
+            }
+        }
+        getChunkSamples(min, max, caneArr);
+        return caneArr;
+    }
+
+    /**
+     * Appends one device's samples with min <= time < max to out, in time order, and returns the
+     * number appended. device is the MAC (IngestLane.deviceId); the rows are a range scan of the
+     * caneFull primary key.
+     */
+    public int getDeviceInterval(long device, long min, long max, SampleBatch out) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        SampleProjection projection = new SampleProjection(SampleProjection.ALL_CHANNELS);
+        long key = findDeviceKey(device);   //-1 for a device never stored, which matches nothing
+        int start = out.size;
+        Cursor res = null;
+        try {
+            res = db.rawQuery("select " + projection.columns() + " from " + CANE_TABLE_FULL + " WHERE device = " + key
+                    + " AND time >= " + Long.toString(min) + " AND time < " + Long.toString(max) + " ORDER BY time, seq", null);
+            res.moveToFirst();
+            projection.read(res, out);
+        } catch (Exception e) {
+            Log.d(TAG, "getDeviceInterval: " + e.getMessage());
+        } finally {
+            if (res != null) {
+                res.close();
+            }
+        }
+        getChunkSamples("device = " + key + " AND ", min, max, out);
+        return out.size - start;
     }
 
     public long[] getMinAndMaxForce() {
@@ -255,7 +1294,8 @@ public class DBHelper extends SQLiteOpenHelper {
 
         db.beginTransaction();
         try {
-            res = db.rawQuery("select MIN(time) from " + CANE_TABLE_FULL, null);
+            res = db.rawQuery("select MIN(t) from (select MIN(time) t from " + CANE_TABLE_FULL
+                    + " union all select MIN(time) from " + CANE_TABLE_CHUNKS + ")", null);
             res.moveToFirst();
             while (res.isAfterLast() == false) {
                 String testMin = res.getString(0);
@@ -264,7 +1304,8 @@ public class DBHelper extends SQLiteOpenHelper {
                 //timeMin = Long.parseLong(res.getString(res.getColumnIndex("MIN(time)")));
             }
             res.close();
-            res = db.rawQuery("select MAX(time) from " + CANE_TABLE_FULL, null);
+            res = db.rawQuery("select MAX(t) from (select MAX(time) t from " + CANE_TABLE_FULL
+                    + " union all select MAX(endTime) from " + CANE_TABLE_CHUNKS + ")", null);
             res.moveToFirst();
             while (res.isAfterLast() == false) {
                 timeMax = res.getLong(0);
@@ -287,61 +1328,184 @@ public class DBHelper extends SQLiteOpenHelper {
         return new long[]{timeMin, timeMax};
     }
 
-    //Generalized method for pulling chunks of raw data
-    //TODO: Address modulator
-    public KinematicData[] getInterval(long windowMin, long intervalSize, long modulator) {
-        Cursor res = null;
-        KinematicData[] caneArr = null;
+    /**
+     * Summarises every device's samples with min <= time < max into bucketMs wide buckets (first,
+     * mean, min and max per channel, see SampleBuckets) in one pass: a single range scan of the
+     * caneFull time index plus the chunks in range, streamed through a small scratch batch. Only
+     * the given channels are read. Returns out (a new one if null), or null if the read failed.
+     */
+    public SampleBuckets getBuckets(long min, long max, long bucketMs, int[] channels, SampleBuckets out) {
+        return getBuckets("", min, max, bucketMs, channels, out, SampleBuckets.MAX_BUCKETS);
+    }
+
+    //As getBuckets() for one device (IngestLane.deviceId), scanning the caneFull primary key
+    public SampleBuckets getDeviceBuckets(long device, long min, long max, long bucketMs, int[] channels, SampleBuckets out) {
+        return getBuckets(deviceWhere(device), min, max, bucketMs, channels, out, SampleBuckets.MAX_BUCKETS);
+    }
+
+    //Selects one device's rows (IngestLane.deviceId), scanning the caneFull primary key
+    private static String deviceWhere(long device) {
+        return "device = " + findDeviceKey(device) + " AND ";
+    }
+
+    //As getBuckets(), widening the buckets past maxBuckets of them
+    private SampleBuckets getBuckets(String where, long min, long max, long bucketMs, int[] channels, SampleBuckets out,
+                                     int maxBuckets) {
         SQLiteDatabase db = this.getReadableDatabase();
-        try{
-            res = db.rawQuery("select * from " + CANE_TABLE_FULL + " WHERE time >= " + Long.toString(windowMin)
-                    + " AND time < " + Long.toString(windowMin + intervalSize) + " AND time % " + Long.toString(modulator)
-                    + " = 0", null);
+        SampleBuckets buckets = out != null ? out : new SampleBuckets();
+        try {
+            buckets.reset(min, max, bucketMs, maxBuckets);
+            addSamples(db, where, min, max, new SampleProjection(channels), buckets);
+        } catch (Exception e) {
+            Log.d(TAG, "getBuckets: " + e.getMessage());
+            return null;
+        }
+        buckets.finish();
+        return buckets;
+    }
+
+    //Folds the caneFull rows and chunk samples with min <= time < max that match where into buckets
+    private static void addSamples(SQLiteDatabase db, String where, long min, long max, SampleProjection projection,
+                                   SampleBuckets buckets) {
+        SampleBatch scratch = new SampleBatch(1024);
+        Cursor res = db.rawQuery("select " + projection.columns() + " from " + CANE_TABLE_FULL + " WHERE " + where + "time >= "
+                + Long.toString(min) + " AND time < " + Long.toString(max), null);
+        try {
             res.moveToFirst();
-            caneArr = new KinematicData[res.getCount()];
-            int rowNum = 0;
-            db.beginTransaction();
-            long time;
-            double force;
-            double accx;
-            double accy;
-            double accz;
-            double gyrox;
-            double gyroy;
-            double gyroz;
-            double pitch;
-            double roll;
-            while (res.isAfterLast() == false) {
-                time = Long.parseLong(res.getString(res.getColumnIndex(CANE_COLUMN_TIME)));
-                force = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_FORCE)));
-                accx = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ACC_X)));
-                accy = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ACC_Y)));
-                accz = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ACC_Z)));
-                gyrox = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_GYRO_X)));
-                gyroy = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_GYRO_Y)));
-                gyroz = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_GYRO_Z)));
-                pitch = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ANGLE_PITCH)));
-                roll = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ANGLE_ROLL)));
-                caneArr[rowNum] = new KinematicData(time, accx, accy, accz, gyrox, gyroy, gyroz, pitch, roll, force);
-                rowNum++;
-                res.moveToNext();
+            while (!res.isAfterLast()) {
+                scratch.clear();
+                projection.read(res, scratch, scratch.capacity());
+                buckets.add(scratch);
+            }
+        } finally {
+            res.close();
+        }
+        double[] scales = getChunkScales(db);
+        res = queryChunks(db, where, min, max);
+        try {
+            while (res.moveToNext()) {
+                scratch.clear();
+                ChunkCodec.decode(deviceMac(res.getLong(0)), res.getLong(1), res.getInt(2), res.getBlob(3),
+                        scales, min, max, scratch);
+                buckets.add(scratch);
+            }
+        } finally {
+            res.close();
+        }
+    }
+
+    /**
+     * Buckets [min, max) for a plot pixels wide, reading from the coarsest caneRollups level that
+     * still gives at least one level bucket per pixel, so any zoom costs at most a few thousand
+     * rows per device. Past a device's newest bucket at that level, which the pyramid has not
+     * closed yet, and over ranges too short for the finest level, the raw samples are bucketed.
+     * Every device's samples share the buckets. Returns out (a new one if null), or null if the
+     * read failed.
+     */
+    public SampleBuckets getPlotBuckets(long min, long max, int pixels, SampleBuckets out) {
+        return getPlotBuckets(null, min, max, pixels, out);
+    }
+
+    //As getPlotBuckets() for one device (IngestLane.deviceId), so two canes never share a trace
+    public SampleBuckets getDevicePlotBuckets(long device, long min, long max, int pixels, SampleBuckets out) {
+        return getPlotBuckets(new long[]{findDeviceKey(device)}, min, max, pixels, out);
+    }
+
+    //keys are the caneDevices ids to read, null for every device
+    private SampleBuckets getPlotBuckets(long[] keys, long min, long max, int pixels, SampleBuckets out) {
+        long bucketMs = Math.max(1, (max - min) / Math.max(1, pixels));
+        int level = -1;
+        while (level + 1 < RollupPyramid.LEVELS_MS.length && RollupPyramid.LEVELS_MS[level + 1] <= bucketMs) {
+            level++;
+        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        SampleBuckets buckets = out != null ? out : new SampleBuckets();
+        SampleProjection projection = new SampleProjection(SampleProjection.ALL_CHANNELS);
+        float[] means = new float[KinematicData.CHANNEL_COUNT];
+        float[] mins = new float[KinematicData.CHANNEL_COUNT];
+        float[] maxes = new float[KinematicData.CHANNEL_COUNT];
+        Cursor res = null;
+        try {
+            if (level < 0) {
+                buckets.reset(min, max, bucketMs);
+                addSamples(db, keys == null ? "" : "device = " + keys[0] + " AND ", min, max, projection, buckets);
+                buckets.finish();
+                return buckets;
+            }
+            //Whole level buckets, so none is split between two plot buckets; widened ones rounded up again
+            long levelMs = RollupPyramid.LEVELS_MS[level];
+            long start = min - min % levelMs;
+            bucketMs = SampleBuckets.widthFor(max - start, bucketMs - bucketMs % levelMs, SampleBuckets.MAX_BUCKETS);
+            bucketMs = (bucketMs + levelMs - 1) / levelMs * levelMs;
+            buckets.reset(start, max, bucketMs);
+            if (keys == null) {
+                keys = deviceKeys(db);
+            }
+            for (long key : keys) {
+                res = db.rawQuery("select MAX(time) from " + CANE_TABLE_ROLLUPS + " WHERE level = " + level
+                        + " AND device = " + key, null);
+                long tail = res.moveToFirst() && !res.isNull(0) ? Math.max(start, res.getLong(0) + levelMs) : start;
+                res.close();
+                res = db.rawQuery("select time, samples, " + rollupColumns() + " from " + CANE_TABLE_ROLLUPS
+                        + " WHERE level = " + level + " AND device = " + key + " AND time >= " + Long.toString(start)
+                        + " AND time < " + Long.toString(Math.min(tail, max)), null);
+                long mac = deviceMac(key);
+                while (res.moveToNext()) {
+                    for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                        means[c] = res.getFloat(2 + 3 * c);
+                        mins[c] = res.getFloat(3 + 3 * c);
+                        maxes[c] = res.getFloat(4 + 3 * c);
+                    }
+                    buckets.addSummary(res.getLong(0), mac, res.getLong(1), means, mins, maxes);
+                }
+                res.close();
+                res = null;
+                if (tail < max) {
+                    addSamples(db, "device = " + key + " AND ", tail, max, projection, buckets);
+                }
             }
         } catch (Exception e) {
-            int failure = 1;
-            String error = e.getMessage();
-            Log.d(TAG, error);
+            Log.d(TAG, "getPlotBuckets: " + e.getMessage());
+            return null;
         } finally {
-            if(res != null){
+            if (res != null) {
                 res.close();
             }
-            db.endTransaction();
-            //db.close();
         }
-        return caneArr;
+        buckets.finish();
+        return buckets;
+    }
+
+    //Every caneDevices id, and 0 for rows stored before devices were recorded
+    private static long[] deviceKeys(SQLiteDatabase db) {
+        Cursor res = db.rawQuery("SELECT id FROM " + CANE_TABLE_DEVICES, null);
+        try {
+            long[] keys = new long[res.getCount() + 1];
+            for (int i = 1; res.moveToNext(); i++) {
+                keys[i] = res.getLong(0);
+            }
+            return keys;
+        } finally {
+            res.close();
+        }
+    }
+
+    //First sample of every modulator ms from windowMin on, whether or not one lands exactly on the modulus
+    public SampleBatch getInterval(long windowMin, long intervalSize, long modulator) {
+        SampleBuckets buckets = getBuckets("", windowMin, windowMin + intervalSize, modulator, SampleProjection.ALL_CHANNELS,
+                null, PLOT_MAX_BUCKETS);
+        return buckets == null ? null : buckets.first;
+    }
+
+    //As getInterval() for one device (IngestLane.deviceId), so another cane's samples don't take its buckets
+    public SampleBatch getInterval(long device, long windowMin, long intervalSize, long modulator) {
+        SampleBuckets buckets = getBuckets(deviceWhere(device), windowMin, windowMin + intervalSize, modulator,
+                SampleProjection.ALL_CHANNELS, null, PLOT_MAX_BUCKETS);
+        return buckets == null ? null : buckets.first;
     }
 
     //TODO: Address modulator. Fix this mess
-    public KinematicData[] plotUpdate(long min, long max, long modulator) {
+    public SampleBatch plotUpdate(long min, long max, long modulator) {
         long maxPull = (max / modulator) * modulator + 10 * modulator;
         long minPull = (min / modulator) * modulator - 10 * modulator;
 
@@ -353,29 +1517,13 @@ public class DBHelper extends SQLiteOpenHelper {
             db.beginTransaction();
 
             synchronized (this) {
-                //Get boundaries of DB call
-                Cursor resMin = db.rawQuery("select MIN(time) from " + CANE_TABLE_FULL + " WHERE time >= " + Long.toString(minPull)
-                        + " AND time <= " + Long.toString(maxPull), null);
-                resMin.moveToFirst();
-                while (resMin.isAfterLast() == false) {
-                    String testMin = resMin.getString(0);
-                    minOut = resMin.getLong(0);
-                    resMin.moveToNext();
-                }
-                resMin.close();
-                Cursor resMax = db.rawQuery("select MAX(time) from " + CANE_TABLE_FULL + " WHERE time >= " + Long.toString(minPull)
-                        + " AND time <= " + Long.toString(maxPull), null);
-                resMax.moveToFirst();
-
-                while (resMax.isAfterLast() == false) {
-                    String testMin = resMax.getString(0);
-                    maxOut = resMax.getLong(0);
-                    resMax.moveToNext();
-                }
-                resMax.close();
+                //Get boundaries of DB call, over the rows and the chunks
+                long[] bounds = timeBounds(db, minPull, maxPull);
+                minOut = bounds[0];
+                maxOut = bounds[1];
             }
 
-            KinematicData[] caneArr = modVals(minOut,maxOut,modulator);
+            SampleBatch caneArr = modVals(minOut,maxOut,modulator);
             db.setTransactionSuccessful();
             return caneArr;
         } catch (Exception e) {
@@ -387,132 +1535,105 @@ public class DBHelper extends SQLiteOpenHelper {
         }
     }
 
-    public KinematicData[] modVals(long minOut, long maxOut, long mod){
-        SQLiteDatabase db = this.getReadableDatabase();
-        long span = maxOut-minOut;
-        int count = (int)(span/mod);
-        if((span % mod) != 0){
-            count++;
+    /**
+     * Earliest and latest sample times with min <= time <= max in caneFull and caneChunks, -1 each
+     * if there are none. Chunks wholly inside the range answer from their time and endTime; only
+     * the few straddling an end are decoded.
+     */
+    private static long[] timeBounds(SQLiteDatabase db, long min, long max) {
+        long timeMin = Long.MAX_VALUE;
+        long timeMax = Long.MIN_VALUE;
+        String range = " >= " + Long.toString(min) + " AND ";
+        Cursor res = db.rawQuery("select MIN(time), MAX(time) from " + CANE_TABLE_FULL + " WHERE time" + range
+                + "time <= " + Long.toString(max), null);
+        try {
+            if (res.moveToFirst() && !res.isNull(0)) {
+                timeMin = res.getLong(0);
+                timeMax = res.getLong(1);
+            }
+        } finally {
+            res.close();
         }
-        Queue<KinematicData> queue = new LinkedList<>();
-        int listLength = 0;
-
-        synchronized (this) {
-            Cursor res = null;
-            for (int i = 0; i < count; i++) {
-                db.beginTransaction();
-                try {
-                    res = db.rawQuery("select * from " + CANE_TABLE_FULL + " WHERE time >= " + Long.toString(minOut + i * mod)
-                            + " AND time < " + Long.toString(minOut + (i + 1) * mod), null);
-                    res.moveToFirst();
-                    if (res.isAfterLast()) {
-                        continue;
-                    }
-                    String temper = res.toString();
-                    int tempy = res.getColumnIndex(CANE_COLUMN_TIME);
-                    long time = Long.parseLong(res.getString(res.getColumnIndex(CANE_COLUMN_TIME)));
-                    double force = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_FORCE)));
-                    double accx = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ACC_X)));
-                    double accy = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ACC_Y)));
-                    double accz = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ACC_Z)));
-                    double gyrox = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_GYRO_X)));
-                    double gyroy = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_GYRO_Y)));
-                    double gyroz = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_GYRO_Z)));
-                    double pitch = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ANGLE_PITCH)));
-                    double roll = Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ANGLE_ROLL)));
-                    queue.add(new KinematicData(time, accx, accy, accz, gyrox, gyroy, gyroz, pitch, roll, force));
-                    listLength++;
-                    db.setTransactionSuccessful();
-                } catch (Exception e) {
-                    Log.d(TAG, e.getMessage());
-                    //caneArr[i] = new KinematicData(minOut+i*mod, 0,0,0,0,0,0,0,0,0); //null;
-                } finally {
-                    db.endTransaction();
-                    if (res != null) {
-                        res.close();
-                    }
-                }
+        res = db.rawQuery("select MIN(time), MAX(endTime) from " + CANE_TABLE_CHUNKS + " WHERE time" + range
+                + "endTime <= " + Long.toString(max), null);
+        try {
+            if (res.moveToFirst() && !res.isNull(0)) {
+                timeMin = Math.min(timeMin, res.getLong(0));
+                timeMax = Math.max(timeMax, res.getLong(1));
             }
+        } finally {
+            res.close();
         }
-        if(listLength > 0){
-            KinematicData[] caneArr = new KinematicData[listLength];
-            int ind = 0;
-            for(KinematicData caner : queue){
-                caneArr[ind] = caner;
-                ind++;
+        double[] scales = getChunkScales(db);
+        SampleBatch decoded = null;
+        res = db.rawQuery("select device, time, samples, data from " + CANE_TABLE_CHUNKS + " WHERE time > "
+                + Long.toString(min - ChunkCodec.MAX_SPAN_MS) + " AND time <= " + Long.toString(max) + " AND endTime >= "
+                + Long.toString(min) + " AND (time < " + Long.toString(min) + " OR endTime > " + Long.toString(max) + ")", null);
+        try {
+            while (res.moveToNext()) {
+                if (decoded == null) {
+                    decoded = new SampleBatch(ChunkCodec.MAX_SAMPLES);
+                }
+                decoded.clear();
+                ChunkCodec.decode(res.getLong(0), res.getLong(1), res.getInt(2), res.getBlob(3), scales, min, max + 1, decoded);
+                for (int i = 0; i < decoded.size; i++) {
+                    timeMin = Math.min(timeMin, decoded.time[i]);
+                    timeMax = Math.max(timeMax, decoded.time[i]);
+                }
             }
-            return caneArr;
-        }else{
-            return null;
+        } finally {
+            res.close();
         }
+        return timeMin > timeMax ? new long[]{-1, -1} : new long[]{timeMin, timeMax};
     }
 
-    public KinematicData[] averageVals(long minOut, long maxOut, long mod){
-        SQLiteDatabase db = this.getReadableDatabase();
+    /**
+     * First sample of each mod ms bucket from minOut to maxOut inclusive, null if there are none.
+     * Every device's samples share the buckets; ranges of more than PLOT_MAX_BUCKETS buckets get wider ones.
+     */
+    public SampleBatch modVals(long minOut, long maxOut, long mod){
+        return firstOf(getBuckets("", minOut, maxOut + 1, mod, SampleProjection.ALL_CHANNELS, null, PLOT_MAX_BUCKETS));
+    }
 
-        long span = maxOut-minOut;
-        int count = (int)(span/mod);
-        if((span % mod) != 0){
-            count++;
-        }
-        KinematicData[] caneArr = new KinematicData[count];
+    //As modVals() for one device (IngestLane.deviceId)
+    public SampleBatch modVals(long device, long minOut, long maxOut, long mod){
+        return firstOf(getBuckets(deviceWhere(device), minOut, maxOut + 1, mod, SampleProjection.ALL_CHANNELS, null,
+                PLOT_MAX_BUCKETS));
+    }
 
-        synchronized (this) {
-            Cursor res = null;
-            for (int i = 0; i < count; i++) {
-                db.beginTransaction();
-                try {
-                    int rowNum = 0;
-                    res = db.rawQuery("select * from " + CANE_TABLE_FULL + " WHERE time >= " + Long.toString(minOut + i * mod)
-                            + " AND time < " + Long.toString(minOut + (i + 1) * mod), null);
-                    res.moveToFirst();
-                    long time = Long.parseLong(res.getString(res.getColumnIndex(CANE_COLUMN_TIME)));
-                    double force = 0;
-                    double accx = 0;
-                    double accy = 0;
-                    double accz = 0;
-                    double gyrox = 0;
-                    double gyroy = 0;
-                    double gyroz = 0;
-                    double pitch = 0;
-                    double roll = 0;
-                    while (res.isAfterLast() == false) {
-                        force += Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_FORCE)));
-                        accx += Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ACC_X)));
-                        accy += Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ACC_Y)));
-                        accz += Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ACC_Z)));
-                        gyrox += Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_GYRO_X)));
-                        gyroy += Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_GYRO_Y)));
-                        gyroz += Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_GYRO_Z)));
-                        pitch += Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ANGLE_PITCH)));
-                        roll += Double.parseDouble(res.getString(res.getColumnIndex(CANE_COLUMN_ANGLE_ROLL)));
-                        //caneArr[rowNum] = new KinematicData(time, accx, accy, accz, gyrox, gyroy, gyroz, pitch, roll, force);
-                        rowNum++;
-                        res.moveToNext();
-                    }
-                    //res.close();
-                    caneArr[i] = new KinematicData(time, accx / rowNum, accy / rowNum, accz / rowNum,
-                            gyrox / rowNum, gyroy / rowNum, gyroz / rowNum, pitch / rowNum, roll / rowNum, force / rowNum);
-                    db.setTransactionSuccessful();
-                } catch (Exception e) {
-                    Log.d(TAG, e.getMessage());
-                    caneArr[i] = new KinematicData(minOut + i * mod, 0, 0, 0, 0, 0, 0, 0, 0, 0); //null;
-                } finally {
-                    if (res != null) {
-                        res.close();
-                    }
-                    db.endTransaction();
-                }
-            }
+    //Mean of each non-empty mod ms bucket from minOut to maxOut inclusive, timed by its first sample
+    public SampleBatch averageVals(long minOut, long maxOut, long mod){
+        return meanOf(getBuckets("", minOut, maxOut + 1, mod, SampleProjection.ALL_CHANNELS, null, PLOT_MAX_BUCKETS));
+    }
+
+    //As averageVals() for one device (IngestLane.deviceId)
+    public SampleBatch averageVals(long device, long minOut, long maxOut, long mod){
+        return meanOf(getBuckets(deviceWhere(device), minOut, maxOut + 1, mod, SampleProjection.ALL_CHANNELS, null,
+                PLOT_MAX_BUCKETS));
+    }
+
+    private static SampleBatch firstOf(SampleBuckets buckets) {
+        return buckets == null || buckets.size() == 0 ? null : buckets.first;
+    }
+
+    private static SampleBatch meanOf(SampleBuckets buckets) {
+        if (buckets == null) {
+            return new SampleBatch(1);
         }
-        return caneArr;
+        System.arraycopy(buckets.first.time, 0, buckets.mean.time, 0, buckets.size());
+        return buckets.mean;
     }
 
-    public KinematicData[] seriesStart(long minStart) {
+    public SampleBatch seriesStart(long minStart) {
         long[] bounds = getMinAndMaxTime();
         long max = bounds[1];
         long min = minStart;//bounds[1] - 500;     //Arbitrary initial spread
         return plotUpdate(min, max, 1);
     }
 
+    //As seriesStart() for one device (IngestLane.deviceId)
+    public SampleBatch seriesStart(long device, long minStart) {
+        return modVals(device, minStart, getMinAndMaxTime()[1], 1);
+    }
+
 }
\ No newline at end of file
@@ -2,8 +2,6 @@ package com.unb.hci.android_ble;
 
 import android.util.Log;
 
-import java.nio.ByteBuffer;
-
 /**
  * Created by Ian on 2016-06-24.
  */
@@ -13,27 +11,42 @@ public class DataRead {
 
     public final char plusSign = '+';
     public static final char minusSign = '-';
-    public static final int objLength = 16; //18    //TODO: Generalize this for any kinematic data model
+    public static final int objLength = 16; //18    //Other data models are described with PacketLayout
 
+    //Hand-written decoder for the built-in cane layout (PacketLayouts.CANE)
+    //Allocates a new KinematicData per call; prefer translateData(input, timeIn, out) on hot paths
     public static KinematicData translateData(byte[] input, long timeIn){
-        if(input.length < objLength){
-            Log.d(TAG, "translateData: data too short");
+        KinematicData out = new KinematicData();
+        if(!translateData(input, timeIn, out)){
             return null;
-        }else if(input.length > objLength){
-            Log.d(TAG, "translateData: data too long");
         }
-        double[] doubleArr = new double[objLength/2];
-        byte[] temp;
-        ByteBuffer buff;
-        for(int i= 0; i < objLength; i = i+2){
-            temp = new byte[2];
-            temp[1] = input[i];
-            temp[0] = input[i+1];
-            buff = ByteBuffer.wrap(temp);
-            doubleArr[i/2] = (double) buff.getShort();
+        return out;
+    }
+
+    //Decodes a packet into caller-owned storage without allocating. Returns false if the packet is too short
+    public static boolean translateData(byte[] input, long timeIn, KinematicData out){
+        if(input.length < objLength){
+            Log.d(TAG, "translateData: data too short");
+            return false;
         }
-        //return new KinematicData(timeIn, doubleArr[3], doubleArr[4],doubleArr[5],doubleArr[0],doubleArr[1],doubleArr[2],0,0,doubleArr[6]);
         // time, accX, accY, accZ, gyroX, gyroY, gyroZ, Dist, FSR1, FSR2
-        return new KinematicData(timeIn, doubleArr[3], doubleArr[4],doubleArr[5],doubleArr[0],doubleArr[1],doubleArr[2],doubleArr[6],doubleArr[7],0);//,doubleArr[8]);
+        // pitch and roll are estimated by OrientationFilter, which needs the previous samples
+        out.time = timeIn;
+        out.gyrox = readInt16(input, 0);
+        out.gyroy = readInt16(input, 2);
+        out.gyroz = readInt16(input, 4);
+        out.accx = readInt16(input, 6);
+        out.accy = readInt16(input, 8);
+        out.accz = readInt16(input, 10);
+        out.distance = readInt16(input, 12);
+        out.force = readInt16(input, 14);
+        out.pitch = 0;
+        out.roll = 0;
+        return true;
+    }
+
+    //Little-endian signed 16 bit value starting at offset
+    public static int readInt16(byte[] input, int offset){
+        return (short) ((input[offset] & 0xFF) | (input[offset+1] << 8));
     }
 }
@@ -0,0 +1,95 @@
+package com.unb.hci.android_ble;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * On-device count of what decoding one cane notification allocates and costs: the original
+ * translateData (a byte[2] and a ByteBuffer per channel, a double[] and a KinematicData per
+ * packet, kept here as legacyTranslate) against decoding into caller-owned storage, both through
+ * DataRead.translateData and through the PacketLayouts.CANE decoder the service compiles.
+ * Allocations are read from the thread counters of android.os.Debug. Meant to be run by hand on
+ * a device, see BluetoothLeService.runDecodeBenchmark().
+ */
+public class DecodeBenchmark {
+    private final static String TAG = DecodeBenchmark.class.getSimpleName();
+
+    static final String[] PATHS = {"legacy translateData", "translateData into KinematicData", "compiled cane decoder"};
+    private static final int DISTINCT_PACKETS = 64;
+
+    private static volatile double sink;   //Keeps the decoded values alive
+
+    //Decodes packets packets on each path; returns and logs one line per path
+    @SuppressWarnings("deprecation")
+    public static String run(int packets) {
+        byte[][] inputs = new byte[DISTINCT_PACKETS][DataRead.objLength];
+        for (int p = 0; p < inputs.length; p++) {
+            for (int b = 0; b < inputs[p].length; b++) {
+                inputs[p][b] = (byte) ((p + 1) * 2654435761L >> b);
+            }
+        }
+        KinematicData sample = new KinematicData();
+        double[] channels = new double[KinematicData.CHANNEL_COUNT];
+        PacketDecoder decoder = PacketLayouts.CANE.compile();
+        StringBuilder report = new StringBuilder();
+        for (int path = 0; path < PATHS.length; path++) {
+            decode(path, inputs, Math.max(1, packets / 10), sample, channels, decoder);    //Warm up
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            sink += decode(path, inputs, packets, sample, channels, decoder);
+            long elapsed = System.nanoTime() - start;
+            int objects = Debug.getThreadAllocCount();
+            int bytes = Debug.getThreadAllocSize();
+            Debug.stopAllocCounting();
+            String line = String.format(Locale.US, "%s: %.2f objects, %.1f bytes, %.0f ns per packet",
+                    PATHS[path], objects / (double) packets, bytes / (double) packets, elapsed / (double) packets);
+            Log.d(TAG, line);
+            report.append(line).append('\n');
+        }
+        return report.toString();
+    }
+
+    //Decodes packets packets on one path and returns a checksum of the decoded values
+    static double decode(int path, byte[][] inputs, int packets, KinematicData sample, double[] channels,
+                         PacketDecoder decoder) {
+        double sum = 0;
+        for (int i = 0; i < packets; i++) {
+            byte[] input = inputs[i & (DISTINCT_PACKETS - 1)];
+            switch (path) {
+                case 0:
+                    sum += legacyTranslate(input, i).accx;
+                    break;
+                case 1:
+                    DataRead.translateData(input, i, sample);
+                    sum += sample.accx;
+                    break;
+                default:
+                    decoder.decode(input, 0, channels);
+                    sum += channels[KinematicData.CHANNEL_ACC_X];
+                    break;
+            }
+        }
+        return sum;
+    }
+
+    //translateData as it was before it decoded into caller-owned storage
+    static KinematicData legacyTranslate(byte[] input, long timeIn) {
+        double[] doubleArr = new double[DataRead.objLength / 2];
+        byte[] temp;
+        ByteBuffer buff;
+        for (int i = 0; i < DataRead.objLength; i = i + 2) {
+            temp = new byte[2];
+            temp[1] = input[i];
+            temp[0] = input[i + 1];
+            buff = ByteBuffer.wrap(temp);
+            doubleArr[i / 2] = (double) buff.getShort();
+        }
+        return new KinematicData(timeIn, doubleArr[3], doubleArr[4], doubleArr[5], doubleArr[0], doubleArr[1],
+                doubleArr[2], doubleArr[6], doubleArr[7], 0);
+    }
+}
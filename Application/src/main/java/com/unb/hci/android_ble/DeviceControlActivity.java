@@ -134,8 +134,8 @@ public class DeviceControlActivity extends FragmentActivity implements Bluetooth
     // ACTION_GATT_CONNECTED: connected to a GATT server.
     // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
     // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
+    // Samples are not broadcast; a view that shows them subscribes through the service
+    // (a rate-limited subscription for live traces, see ReducingSubscription).
 
     //TODO: Transfer connection control over to service so it can be dynamically updated
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
@@ -164,8 +164,6 @@ public class DeviceControlActivity extends FragmentActivity implements Bluetooth
                 displayGattServices(mBluetoothLeService.getSupportedGattServices(mDeviceAddress));
                 Log.d(TAG, "onReceive: Services discovered!");
                 commSwitch();   //Start notifications on Rx
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                Log.d(TAG, "onReceive: Data available!");
             }
         }
     };
@@ -409,7 +407,6 @@ public class DeviceControlActivity extends FragmentActivity implements Bluetooth
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTING);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
         return intentFilter;
     }
 
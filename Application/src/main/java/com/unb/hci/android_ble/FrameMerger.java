@@ -0,0 +1,254 @@
+package com.unb.hci.android_ble;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Streaming k-way merge of several devices onto a common time grid. Register it with
+ * BluetoothLeService.mergeFrames() and it is fed each device's decoded samples straight from its
+ * ingest lane, with no copy, and emits one Frame per grid step with each device's channels at
+ * that instant, as soon as every device has reported past it. The FrameListener therefore runs
+ * on the GATT thread that completed the frame and must return quickly.
+ *
+ * A device value at grid time T is, depending on the mode, interpolated between the samples
+ * either side of T or held from the last sample at or before T; either way only if the samples
+ * used are within toleranceMs of T, otherwise the device is marked missing for that frame. If a
+ * device falls more than maxWaitMs behind the others the grid moves on without it. Each device
+ * keeps at most bufferSize samples, so memory stays bounded however far the streams drift.
+ *
+ * One call emits at most MAX_FRAMES_PER_CALL frames. A clock jump that would need more (a device
+ * clock leaping ahead, or restarting behind the grid) resets the grid to the newest samples
+ * instead of filling the gap with missing frames; getResets() counts these.
+ */
+public class FrameMerger implements SampleListener {
+
+    public enum Mode {
+        INTERPOLATE,    //Linear interpolation between the samples either side of T
+        HOLD_LAST       //Last sample at or before T
+    }
+
+    /**
+     * One aligned frame. The instance is reused; listeners copy what they need to keep.
+     */
+    public static class Frame {
+        public long time;
+        public final String[] addresses;
+        public final float[][] values;      //[device][channel], NaN where missing
+        public final boolean[] present;
+
+        Frame(String[] addresses) {
+            this.addresses = addresses;
+            values = new float[addresses.length][KinematicData.CHANNEL_COUNT];
+            present = new boolean[addresses.length];
+        }
+    }
+
+    public interface FrameListener {
+        void onFrame(Frame frame);
+    }
+
+    public static final int MAX_FRAMES_PER_CALL = 1000;
+
+    private final long periodMs;
+    private final long toleranceMs;
+    private final long maxWaitMs;
+    private final Mode mode;
+    private final FrameListener listener;
+    private final HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+    private final DeviceBuffer[] buffers;
+    private final Frame frame;
+    private final long resetMs;     //Gaps the grid jumps instead of stepping through
+    private long next = Long.MIN_VALUE;    //Next grid time to emit
+    private long resets;
+
+    public FrameMerger(String[] addresses, long periodMs, long toleranceMs, long maxWaitMs,
+                       int bufferSize, Mode mode, FrameListener listener) {
+        if (periodMs < 1 || toleranceMs < 0 || maxWaitMs < 0 || bufferSize < 2) {
+            throw new IllegalArgumentException("Invalid merge settings");
+        }
+        this.periodMs = periodMs;
+        this.toleranceMs = toleranceMs;
+        this.maxWaitMs = maxWaitMs;
+        this.mode = mode;
+        this.listener = listener;
+        this.resetMs = MAX_FRAMES_PER_CALL * periodMs;
+        buffers = new DeviceBuffer[addresses.length];
+        for (int d = 0; d < addresses.length; d++) {
+            indexes.put(addresses[d], d);
+            buffers[d] = new DeviceBuffer(bufferSize);
+        }
+        frame = new Frame(addresses.clone());
+    }
+
+    @Override
+    public synchronized void onSamples(String address, SampleBatch batch) {
+        Integer d = indexes.get(address);
+        if (d == null || batch.isEmpty()) {
+            return;
+        }
+        DeviceBuffer buffer = buffers[d];
+        for (int i = 0; i < batch.size; i++) {
+            buffer.add(batch, i);
+        }
+        if (next == Long.MIN_VALUE) {
+            next = gridPoint(batch.time[0]);
+        }
+        emitReady();
+    }
+
+    //True if address is one of the merged devices
+    public boolean merges(String address) {
+        return indexes.containsKey(address);
+    }
+
+    //Number of times a clock jump reset the grid
+    public synchronized long getResets() {
+        return resets;
+    }
+
+    private void emitReady() {
+        for (int emitted = 0; emitted < MAX_FRAMES_PER_CALL; ) {
+            long newest = Long.MIN_VALUE;
+            boolean allPast = true;
+            for (DeviceBuffer buffer : buffers) {
+                long last = buffer.newestTime();
+                newest = Math.max(newest, last);
+                allPast &= last >= next;
+            }
+            if (newest == Long.MIN_VALUE) {
+                return;
+            }
+            if (newest - next > resetMs + maxWaitMs || next - newest > resetMs) {
+                next = gridPoint(newest - maxWaitMs);
+                resets++;
+                continue;
+            }
+            //Wait for stragglers unless someone is already maxWaitMs past this grid point
+            if (!allPast && newest < next + maxWaitMs) {
+                return;
+            }
+            frame.time = next;
+            for (int d = 0; d < buffers.length; d++) {
+                frame.present[d] = buffers[d].valueAt(next, frame.values[d]);
+                if (!frame.present[d]) {
+                    Arrays.fill(frame.values[d], Float.NaN);
+                }
+                buffers[d].trimBefore(next);
+            }
+            listener.onFrame(frame);
+            next += periodMs;
+            emitted++;
+        }
+    }
+
+    //First grid time at or after t
+    private long gridPoint(long t) {
+        long r = t % periodMs;
+        return r == 0 ? t : t - r + (r > 0 ? periodMs : 0);
+    }
+
+    //Feeds a merger from the ingest lanes, see BluetoothLeService.mergeFrames()
+    static class LaneFeed extends SampleSubscription {
+        private final FrameMerger merger;
+
+        LaneFeed(FrameMerger merger) {
+            super(null, null, merger);
+            this.merger = merger;
+        }
+
+        @Override
+        boolean matches(String deviceAddress) {
+            return merger.merges(deviceAddress);
+        }
+
+        @Override
+        void deliver(String deviceAddress, SampleBatch batch) {
+            if (!isCancelled()) {
+                merger.onSamples(deviceAddress, batch);
+            }
+        }
+    }
+
+    //Fixed-capacity columnar buffer of one device's most recent samples
+    private class DeviceBuffer {
+        private final long[] time;
+        private final float[][] channels = new float[KinematicData.CHANNEL_COUNT][];
+        private int start;
+        private int count;
+
+        DeviceBuffer(int capacity) {
+            time = new long[capacity];
+            for (int c = 0; c < channels.length; c++) {
+                channels[c] = new float[capacity];
+            }
+        }
+
+        void add(SampleBatch batch, int i) {
+            if (count > 0 && batch.time[i] < newestTime()) {
+                if (batch.time[i] >= newestTime() - resetMs) {
+                    return;     //Out of order; the grid has usually moved past it already
+                }
+                count = 0;      //Clock restarted far behind; start over from this sample
+            }
+            if (count == time.length) {
+                start = (start + 1) % time.length;    //Drop the oldest
+                count--;
+            }
+            int slot = (start + count) % time.length;
+            time[slot] = batch.time[i];
+            for (int c = 0; c < channels.length; c++) {
+                channels[c][slot] = batch.channels[c][i];
+            }
+            count++;
+        }
+
+        long newestTime() {
+            return count == 0 ? Long.MIN_VALUE : time[(start + count - 1) % time.length];
+        }
+
+        //Keeps the last sample at or before t, which later grid points may still need
+        void trimBefore(long t) {
+            while (count > 1 && time[(start + 1) % time.length] <= t) {
+                start = (start + 1) % time.length;
+                count--;
+            }
+        }
+
+        boolean valueAt(long t, float[] out) {
+            int before = -1;
+            int after = -1;
+            for (int k = 0; k < count; k++) {
+                int slot = (start + k) % time.length;
+                if (time[slot] <= t) {
+                    before = slot;
+                } else {
+                    after = slot;
+                    break;
+                }
+            }
+            boolean beforeOk = before >= 0 && t - time[before] <= toleranceMs;
+            if (mode == Mode.HOLD_LAST || after < 0 || time[after] - t > toleranceMs) {
+                if (!beforeOk) {
+                    return false;
+                }
+                copy(before, out);
+                return true;
+            }
+            if (!beforeOk) {
+                copy(after, out);   //Nearest sample just past t
+                return true;
+            }
+            double w = (double) (t - time[before]) / (time[after] - time[before]);
+            for (int c = 0; c < channels.length; c++) {
+                out[c] = (float) (channels[c][before] + (channels[c][after] - channels[c][before]) * w);
+            }
+            return true;
+        }
+
+        private void copy(int slot, float[] out) {
+            for (int c = 0; c < channels.length; c++) {
+                out[c] = channels[c][slot];
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.unb.hci.android_ble;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps caneAnalytics up to date as data is committed, so summaries read one small row per
+ * device and hour instead of scanning caneFull. Each open hour holds Welford accumulators
+ * (count, mean, sum of squared deviations) for force, pitch and roll plus the force maximum;
+ * when a device's samples move into a new hour, or an hour has been quiet past HOUR_GRACE_MS,
+ * the hour is merged into its row. Rows carry count and means, so an hour written in several
+ * parts (restarts, late samples) merges exactly.
+ *
+ * Used only by the StorageWriter thread, and by DBHelper to rebuild hours it deleted samples from.
+ */
+public class HourlyAnalytics {
+
+    public static final long HOUR_MS = 3600000;
+    private static final long HOUR_GRACE_MS = 60000;    //Wait for late samples this long past the hour
+
+    //One device-hour of statistics
+    public static class Hour {
+        public final long device;
+        public final long hour;     //Start of the hour, ms
+        public long samples;
+        public double forceMax = Double.NEGATIVE_INFINITY;
+        public double forceMean;
+        public double pitchMean;
+        public double rollMean;
+        double forceM2;
+        double pitchM2;
+        double rollM2;
+
+        public Hour(long device, long hour) {
+            this.device = device;
+            this.hour = hour;
+        }
+
+        void add(double force, double pitch, double roll) {
+            samples++;
+            forceMax = Math.max(forceMax, force);
+            double d = force - forceMean;
+            forceMean += d / samples;
+            forceM2 += d * (force - forceMean);
+            d = pitch - pitchMean;
+            pitchMean += d / samples;
+            pitchM2 += d * (pitch - pitchMean);
+            d = roll - rollMean;
+            rollMean += d / samples;
+            rollM2 += d * (roll - rollMean);
+        }
+
+        //Combines another partial hour into this one (Chan et al. parallel variance)
+        public void merge(long n, double max, double fMean, double fVariance, double pMean, double pVariance,
+                          double rMean, double rVariance) {
+            if (n <= 0) {
+                return;
+            }
+            long total = samples + n;
+            double d = fMean - forceMean;
+            forceM2 += fVariance * n + d * d * samples * n / total;
+            forceMean += d * n / total;
+            d = pMean - pitchMean;
+            pitchM2 += pVariance * n + d * d * samples * n / total;
+            pitchMean += d * n / total;
+            d = rMean - rollMean;
+            rollM2 += rVariance * n + d * d * samples * n / total;
+            rollMean += d * n / total;
+            forceMax = Math.max(forceMax, max);
+            samples = total;
+        }
+
+        //Population variances
+        public double getForceVariance() {
+            return samples == 0 ? 0 : forceM2 / samples;
+        }
+
+        public double getPitchVariance() {
+            return samples == 0 ? 0 : pitchM2 / samples;
+        }
+
+        public double getRollVariance() {
+            return samples == 0 ? 0 : rollM2 / samples;
+        }
+    }
+
+    private final HashMap<Long, Hour> open = new HashMap<Long, Hour>();
+    private final ArrayList<Hour> closed = new ArrayList<Hour>();
+
+    //Accumulates every row of a committed batch
+    public void add(SampleBatch batch) {
+        float[] force = batch.channels[KinematicData.CHANNEL_FORCE];
+        float[] pitch = batch.channels[KinematicData.CHANNEL_PITCH];
+        float[] roll = batch.channels[KinematicData.CHANNEL_ROLL];
+        Hour current = null;
+        for (int i = 0; i < batch.size; i++) {
+            long hour = batch.time[i] - batch.time[i] % HOUR_MS;
+            long device = batch.device[i];
+            if (current == null || current.device != device || current.hour != hour) {
+                current = open.get(device);
+                if (current == null || current.hour != hour) {
+                    if (current != null) {
+                        closed.add(current);
+                    }
+                    current = new Hour(device, hour);
+                    open.put(device, current);
+                }
+            }
+            current.add(force[i], pitch[i], roll[i]);
+        }
+    }
+
+    //Closes hours that ended more than HOUR_GRACE_MS before now
+    public void closeQuiet(long now) {
+        Iterator<Hour> hours = open.values().iterator();
+        while (hours.hasNext()) {
+            Hour hour = hours.next();
+            if (hour.hour + HOUR_MS + HOUR_GRACE_MS <= now) {
+                closed.add(hour);
+                hours.remove();
+            }
+        }
+    }
+
+    //Closes every open hour, for shutdown; partial hours merge with the rest later
+    public void closeAll() {
+        closed.addAll(open.values());
+        open.clear();
+    }
+
+    //Hands the closed hours over to a caller that writes them itself
+    public List<Hour> takeClosed() {
+        ArrayList<Hour> taken = new ArrayList<Hour>(closed);
+        closed.clear();
+        return taken;
+    }
+
+    /**
+     * Merges the closed hours into caneAnalytics. Returns false and keeps them for the next try
+     * if the database write failed.
+     */
+    public boolean writeClosed() {
+        if (closed.isEmpty()) {
+            return true;
+        }
+        if (!"Clear".equals(DBHelper.mergeAnalytics(closed))) {
+            return false;
+        }
+        closed.clear();
+        return true;
+    }
+}
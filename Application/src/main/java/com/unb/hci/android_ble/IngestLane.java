@@ -0,0 +1,195 @@
+package com.unb.hci.android_ble;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Ingest state for one connected device: its clock mapping, orientation filter, journal, decode
+ * scratch space and counters.
+ * Each lane locks only itself: the device has a RawJournal of its own, so devices meet nowhere
+ * but the lock-free SampleRing. The device id (the MAC address packed into a long) travels with
+ * every sample down to the database, and with it a seq that tells samples in the same
+ * millisecond apart (nextSeq()).
+ */
+public class IngestLane {
+    private final static String TAG = IngestLane.class.getSimpleName();
+
+    private static final int SEQ_WINDOW = 32;   //Distinct recent milliseconds nextSeq() counts samples in
+
+    public final String address;
+    public final long deviceId;
+    private final IngestQueue queue;
+    private final IngestStats stats;
+    private final RawJournal journal;   //Null when recording without one
+    private long mark;                  //Journal position past the last notification
+    private final double[] channels = new double[KinematicData.CHANNEL_COUNT];
+    private double[] deviceTimes = new double[16];
+    private final SampleBatch decoded = new SampleBatch(16);
+    private long journalErrors;
+    private ClockSync clock;
+    private final OrientationFilter orientation = new OrientationFilter();
+    private final long[] seqTimes = new long[SEQ_WINDOW];
+    private final int[] seqCounts = new int[SEQ_WINDOW];
+    private int seqOldest;
+
+    IngestLane(String address, IngestQueue queue, RawJournal journal) {
+        this.address = address;
+        this.deviceId = deviceId(address);
+        this.queue = queue;
+        this.journal = journal;
+        this.stats = queue == null ? null : queue.register(address);   //No queue when replaying
+        Arrays.fill(seqTimes, Long.MIN_VALUE);
+    }
+
+    public IngestStats getStats() {
+        return stats;
+    }
+
+    public synchronized ClockSync getClockSync() {
+        return clock;
+    }
+
+    //Forgets the clock mapping and the seq counts; the device counter restarts when it reconnects
+    public synchronized void resetClock() {
+        clock = null;
+        orientation.reset();
+        Arrays.fill(seqTimes, Long.MIN_VALUE);
+    }
+
+    /**
+     * Decodes a notification that arrived at arrivalTime and queues its samples for storage. The
+     * raw packet is appended to the lane's journal, if any, first. The lane's decode batch is
+     * then handed to each subscriber matching the device; it is reused for the next packet, so
+     * nothing is allocated here for subscribers.
+     */
+    public synchronized void ingest(PacketDecoder decoder, UUID uuid, byte[] data, long arrivalTime,
+                                    SampleSubscription[] subscribers) {
+        decoded.clear();
+        decode(decoder, data, arrivalTime, decoded);
+        long appended = mark;
+        if (journal != null) {
+            try {
+                appended = journal.append(deviceId, arrivalTime, uuid, data, decoded.time, decoded.seq, decoded.size);
+            } catch (IOException e) {
+                if (journalErrors++ == 0) {
+                    Log.w(TAG, "ingest: Journal append failed for " + address + ": " + e.getMessage());
+                }
+            }
+        }
+        publish(appended);
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i].matches(address)) {
+                subscribers[i].deliver(address, decoded);
+            }
+        }
+    }
+
+    //Appends the samples of a notification to out, timed by the lane's clock mapping
+    synchronized void decode(PacketDecoder decoder, byte[] data, long arrivalTime, SampleBatch out) {
+        int count = decoder.sampleCount(data.length);
+        if (count == 0) {
+            return;
+        }
+        if (decoder.hasCounter()) {
+            if (clock == null) {
+                clock = new ClockSync(decoder.counterBits, decoder.counterTickUs);
+            }
+            //Device clock first, so every sample in the packet maps with the updated estimate
+            if (deviceTimes.length < count) {
+                deviceTimes = new double[count];
+            }
+            for (int i = 0; i < count; i++) {
+                deviceTimes[i] = clock.deviceTime(decoder.readCounter(data, i * decoder.length));
+            }
+            clock.observe(deviceTimes[count - 1], arrivalTime);
+        }
+        out.ensureCapacity(out.size + count);
+        for (int i = 0; i < count; i++) {
+            long sampleTime = decoder.hasCounter() ? clock.map(deviceTimes[i]) : decoder.sampleTime(arrivalTime, i, count);
+            add(decoder, data, i, sampleTime, nextSeq(sampleTime), out);
+        }
+    }
+
+    /**
+     * Appends the samples of a journaled notification to out at the sample times and seqs it
+     * was given live (see RawJournal), leaving the clock mapping alone. seqs is null for records
+     * journaled without them, whose seqs are counted afresh.
+     */
+    synchronized void decode(PacketDecoder decoder, byte[] data, long[] sampleTimes, int[] seqs, SampleBatch out) {
+        int count = decoder.sampleCount(data.length);
+        out.ensureCapacity(out.size + count);
+        for (int i = 0; i < count; i++) {
+            add(decoder, data, i, sampleTimes[i], seqs != null ? seqs[i] : nextSeq(sampleTimes[i]), out);
+        }
+    }
+
+    private void add(PacketDecoder decoder, byte[] data, int i, long sampleTime, int seq, SampleBatch out) {
+        decoder.decode(data, i * decoder.length, channels);
+        if (decoder.gyroScale > 0) {
+            orientation.update(sampleTime, channels, decoder.gyroScale, decoder.samplePeriodUs);
+        }
+        out.add(deviceId, sampleTime, seq, channels);
+    }
+
+    /**
+     * seq of a sample at time: how many samples the lane has already had in that millisecond,
+     * counted over the last SEQ_WINDOW distinct milliseconds since the device connected. It
+     * depends only on the device's own samples, so rows are keyed the same whatever they are
+     * batched with, and a sample the device sends again after reconnecting gets its old key.
+     */
+    private int nextSeq(long time) {
+        for (int k = 0; k < SEQ_WINDOW; k++) {
+            if (seqTimes[k] == time) {
+                return seqCounts[k]++;
+            }
+        }
+        seqTimes[seqOldest] = time;
+        seqCounts[seqOldest] = 1;
+        seqOldest = (seqOldest + 1) % SEQ_WINDOW;
+        return 0;
+    }
+
+    /**
+     * Queues the decoded samples. Only the last carries the notification's journal position; the
+     * others carry the previous one, so the writer never checkpoints past a notification whose
+     * samples it has only partly committed.
+     */
+    private void publish(long appended) {
+        for (int i = 0; i < decoded.size; i++) {
+            for (int c = 0; c < channels.length; c++) {
+                channels[c] = decoded.channels[c][i];
+            }
+            queue.publish(stats, deviceId, i == decoded.size - 1 ? appended : mark, decoded.time[i], decoded.seq[i],
+                    channels);
+        }
+        mark = appended;
+    }
+
+    //"AA:BB:CC:DD:EE:FF" as the 48-bit number 0xAABBCCDDEEFF
+    public static long deviceId(String address) {
+        long id = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                id = (id << 4) | digit;
+            }
+        }
+        return id;
+    }
+
+    public static String address(long deviceId) {
+        StringBuilder out = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int b = (int) (deviceId >>> shift) & 0xFF;
+            out.append(Character.toUpperCase(Character.forDigit(b >> 4, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(b & 0x0F, 16)));
+            if (shift > 0) {
+                out.append(':');
+            }
+        }
+        return out.toString();
+    }
+}
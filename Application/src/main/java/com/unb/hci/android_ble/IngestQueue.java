@@ -0,0 +1,138 @@
+package com.unb.hci.android_ble;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Front of the SampleRing that applies the OverloadPolicy and keeps per-device counters, so
+ * falling behind on storage costs a predictable, counted loss instead of unbounded memory or a
+ * silently discarded batch.
+ */
+public class IngestQueue {
+    private final static String TAG = IngestQueue.class.getSimpleName();
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final SampleRing ring;
+    private volatile OverloadPolicy policy = OverloadPolicy.DROP_OLDEST;
+    private volatile int decimationFactor = 2;
+    private volatile int highWatermark;
+    private volatile long maxBlockNanos = TimeUnit.MILLISECONDS.toNanos(500);
+    private volatile IngestStats[] statsById = new IngestStats[0];
+    private final ArrayList<IngestStats> allStats = new ArrayList<IngestStats>();
+
+    public IngestQueue(SampleRing ring) {
+        this.ring = ring;
+        this.highWatermark = ring.capacity() * 3 / 4;
+    }
+
+    public SampleRing getRing() {
+        return ring;
+    }
+
+    public void setPolicy(OverloadPolicy policyIn) {
+        policy = policyIn;
+    }
+
+    public OverloadPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Settings for DECIMATE: above highWatermark queued samples only every factor-th sample of
+     * each device is kept.
+     */
+    public void setDecimation(int factor, int watermark) {
+        if (factor < 2 || watermark < 1 || watermark > ring.capacity()) {
+            throw new IllegalArgumentException("Invalid decimation " + factor + " above " + watermark);
+        }
+        decimationFactor = factor;
+        highWatermark = watermark;
+    }
+
+    //Longest a BLOCK-ed callback waits for room before the sample is dropped after all
+    public void setMaxBlockMs(long ms) {
+        maxBlockNanos = TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    //Returns the counters for a device, creating them on first use
+    public synchronized IngestStats register(String address) {
+        for (IngestStats stats : allStats) {
+            if (stats.address.equals(address)) {
+                return stats;
+            }
+        }
+        IngestStats stats = new IngestStats(address, allStats.size());
+        allStats.add(stats);
+        statsById = allStats.toArray(new IngestStats[allStats.size()]);
+        return stats;
+    }
+
+    public synchronized IngestStats getStats(String address) {
+        for (IngestStats stats : allStats) {
+            if (stats.address.equals(address)) {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues one sample for storage under the current policy. Returns true if it was queued. mark
+     * is handed back to the storage writer with the sample (the journal position, or 0), seq is
+     * its place among the device's samples in time's millisecond (IngestLane).
+     */
+    public boolean publish(IngestStats stats, long deviceId, long mark, long time, int seq, double[] values) {
+        stats.received.incrementAndGet();
+        OverloadPolicy current = policy;
+        if (current == OverloadPolicy.DECIMATE && ring.size() >= highWatermark) {
+            if (++stats.decimationPhase < decimationFactor) {
+                stats.decimated.incrementAndGet();
+                return false;
+            }
+            stats.decimationPhase = 0;
+        }
+        if (ring.offer(stats.id, deviceId, mark, time, seq, values)) {
+            stats.queued.incrementAndGet();
+            return true;
+        }
+        switch (current) {
+            case BLOCK:
+                long deadline = System.nanoTime() + maxBlockNanos;
+                while (System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    if (ring.offer(stats.id, deviceId, mark, time, seq, values)) {
+                        stats.queued.incrementAndGet();
+                        return true;
+                    }
+                }
+                break;
+            case DROP_OLDEST:
+                //Other producers may refill the freed slot first; give up after a few rounds
+                for (int attempt = 0; attempt < 4; attempt++) {
+                    int evicted = ring.evictOldest();
+                    if (evicted >= 0) {
+                        IngestStats[] byId = statsById;
+                        if (evicted < byId.length) {
+                            byId[evicted].dropped.incrementAndGet();
+                        }
+                    }
+                    if (ring.offer(stats.id, deviceId, mark, time, seq, values)) {
+                        stats.queued.incrementAndGet();
+                        return true;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        long dropped = stats.dropped.incrementAndGet();
+        if ((dropped & 1023) == 1) {
+            Log.w(TAG, "publish: Storage behind, " + stats);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,43 @@
+package com.unb.hci.android_ble;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-device ingest counters. Samples can be dropped by another device's callback (DROP_OLDEST
+ * evicts whichever sample is oldest), so the counters are atomic.
+ */
+public class IngestStats {
+    public final String address;
+    public final int id;
+    final AtomicLong received = new AtomicLong();
+    final AtomicLong queued = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong decimated = new AtomicLong();
+    int decimationPhase;    //Only touched by the device's own callback
+
+    IngestStats(String address, int id) {
+        this.address = address;
+        this.id = id;
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getQueued() {
+        return queued.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getDecimated() {
+        return decimated.get();
+    }
+
+    public String toString() {
+        return address + ": " + received.get() + " received, " + dropped.get() + " dropped, "
+                + decimated.get() + " decimated";
+    }
+}
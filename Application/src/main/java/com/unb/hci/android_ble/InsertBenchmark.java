@@ -0,0 +1,98 @@
+package com.unb.hci.android_ble;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * On-device comparison of the two ways of inserting caneFull rows: a ContentValues per row
+ * through insertOrThrow (the old fullInsertLoop) against one compiled SQLiteStatement bound from
+ * the batch columns (the current one). Each path writes the same synthetic rows into a scratch
+ * copy of caneFull, one transaction per batch, at each of BATCH_SIZES; the scratch table is
+ * dropped afterwards. Meant to be run by hand on a device, see BluetoothLeService.runInsertBenchmark().
+ */
+public class InsertBenchmark {
+    private final static String TAG = InsertBenchmark.class.getSimpleName();
+
+    static final String TABLE = "caneFull_benchmark";
+    public static final int[] BATCH_SIZES = {10, 100, 1000};
+
+    //Runs every batch size over rows rows per path; returns and logs one line per batch size
+    public static String run(SQLiteDatabase db, int rows) {
+        SampleBatch batch = new SampleBatch(BATCH_SIZES[BATCH_SIZES.length - 1]);
+        StringBuilder report = new StringBuilder();
+        for (int batchSize : BATCH_SIZES) {
+            double values = rowsPerSecond(db, batch, batchSize, rows, false);
+            double compiled = rowsPerSecond(db, batch, batchSize, rows, true);
+            String line = String.format(Locale.US, "batch %d: ContentValues %.0f rows/s, statement %.0f rows/s (%.1fx)",
+                    batchSize, values, compiled, compiled / values);
+            Log.d(TAG, line);
+            report.append(line).append('\n');
+        }
+        return report.toString();
+    }
+
+    private static double rowsPerSecond(SQLiteDatabase db, SampleBatch batch, int batchSize, int rows, boolean compiled) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        DBHelper.createFullTable(db, TABLE);
+        SQLiteStatement insert = compiled ? db.compileStatement("INSERT INTO " + TABLE + " (" + DBHelper.FULL_COLUMNS
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)") : null;
+        long time = 0;
+        long start = System.nanoTime();
+        try {
+            for (int written = 0; written < rows; written += batch.size) {
+                fill(batch, Math.min(batchSize, rows - written), time);
+                time += batch.size;
+                db.beginTransaction();
+                try {
+                    for (int i = 0; i < batch.size; i++) {
+                        if (compiled) {
+                            insert.bindLong(1, batch.device[i]);
+                            insert.bindLong(2, batch.time[i]);
+                            insert.bindLong(3, 0);
+                            for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                                insert.bindDouble(4 + c, batch.channels[c][i]);
+                            }
+                            insert.executeInsert();
+                        } else {
+                            ContentValues values = new ContentValues();
+                            values.put(DBHelper.CANE_COLUMN_TIME, batch.time[i]);
+                            values.put(DBHelper.CANE_COLUMN_DEVICE, batch.device[i]);
+                            values.put(DBHelper.CANE_COLUMN_SEQ, 0);
+                            for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                                values.put(KinematicData.CHANNEL_NAMES[c], (double) batch.channels[c][i]);
+                            }
+                            db.insertOrThrow(TABLE, null, values);
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        } finally {
+            if (insert != null) {
+                insert.close();
+            }
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        }
+        return rows / ((System.nanoTime() - start) / 1e9);
+    }
+
+    //Sensor-like int16 values for times firstTime onwards
+    private static void fill(SampleBatch batch, int count, long firstTime) {
+        batch.clear();
+        for (int i = 0; i < count; i++) {
+            int j = batch.size++;
+            long t = firstTime + i;
+            batch.time[j] = t;
+            batch.device[j] = 1;
+            for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                batch.channels[c][j] = (short) (t * (c + 7) * 2654435761L >> 16);
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.unb.hci.android_ble;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Replays journal segments left by a process that died before SQLite caught up. Only records
+ * past each segment's committed offset are read, each is checked against its crc, and the first
+ * bad one ends the segment (a write torn by the kill). Rows are committed by the StorageWriter
+ * like live ones, in its StorageLayout and through its analytics, rollups and step detector.
+ * They come back with the keys they had live (the journaled seqs), so rows that did reach the
+ * database before the kill are dropped, by ConflictPolicy.IGNORE in the ROWS layout and as
+ * already chunked samples in CHUNKS (DBHelper.insertChunks), and count nowhere twice. An
+ * interrupted replay can simply run again.
+ *
+ * Samples get the timestamps journaled with them, so they come back exactly as they were timed
+ * live. Records of journal version 3 get their seqs counted afresh, and those of version 2,
+ * which has no sample times, are also timed afresh: by a new clock mapping for layouts with a
+ * device counter, which can put rows a few ms apart from their originals.
+ */
+public class JournalReplay {
+    private final static String TAG = JournalReplay.class.getSimpleName();
+
+    private static final int BATCH_SIZE = 2000;
+
+    private final ArrayList<File> segments = new ArrayList<File>();
+    private final HashMap<UUID, PacketDecoder> decoders = new HashMap<UUID, PacketDecoder>();
+    private final HashMap<Long, IngestLane> lanes = new HashMap<Long, IngestLane>();
+    private final SampleBatch batch = new SampleBatch(BATCH_SIZE);
+    private StorageWriter writer;
+    private final CRC32 crc = new CRC32();
+    private byte[] record = new byte[256];
+    private byte[] data = new byte[0];
+    private long[] sampleTimes = new long[16];
+    private int[] seqs = new int[16];
+    private long records;
+    private long samples;
+    private long skipped;
+
+    /**
+     * Takes the segments under the journal root directory as they are now, those of every
+     * device's journal and any a single shared journal left there; call before any RawJournal is
+     * opened under it so only segments from earlier runs are replayed.
+     */
+    public JournalReplay(File directory) {
+        addSegments(directory);
+        File[] devices = directory.listFiles();
+        if (devices != null) {
+            for (File device : devices) {
+                if (device.isDirectory()) {
+                    addSegments(device);
+                }
+            }
+        }
+    }
+
+    private void addSegments(File directory) {
+        for (int index : RawJournal.listSegments(directory)) {
+            segments.add(RawJournal.segmentFile(directory, index));
+        }
+    }
+
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * Replays every segment into SQLite through writer and deletes it; call on the writer's
+     * thread. Returns false, keeping the remaining segments for the next start, if a segment
+     * could not be read or a write to the database failed.
+     */
+    public boolean replay(StorageWriter writerIn) {
+        writer = writerIn;
+        long start = System.nanoTime();
+        for (File file : segments) {
+            try {
+                if (!replaySegment(RawJournal.map(file))) {
+                    return false;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "replay: Cannot read segment " + file + ", kept: " + e.getMessage());
+                return false;
+            }
+            if (!file.delete()) {
+                Log.w(TAG, "replay: Could not delete segment " + file);
+            }
+        }
+        Log.d(TAG, "replay: " + records + " packets, " + samples + " samples from " + segments.size()
+                + " segments in " + (System.nanoTime() - start) / 1000000 + " ms, " + skipped + " skipped");
+        return true;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    private boolean replaySegment(MappedByteBuffer segment) {
+        int version = segment.getInt(4);
+        if (segment.getInt(0) != RawJournal.MAGIC
+                || (version != RawJournal.VERSION && version != RawJournal.VERSION_WITHOUT_SEQS
+                && version != RawJournal.VERSION_WITHOUT_TIMES)) {
+            Log.w(TAG, "replaySegment: Not a journal segment of a known version, skipped");
+            return true;
+        }
+        boolean timed = version != RawJournal.VERSION_WITHOUT_TIMES;
+        int perSample = version == RawJournal.VERSION ? 8 : 4;    //Time, and seq if journaled
+        int headerSize = timed ? RawJournal.RECORD_HEADER_SIZE : RawJournal.RECORD_HEADER_SIZE - 4;
+        int position = segment.getInt(RawJournal.COMMITTED_OFFSET);
+        while (position >= RawJournal.HEADER_SIZE && position + headerSize <= RawJournal.SEGMENT_SIZE) {
+            int length = segment.getInt(position);
+            int count = timed ? segment.getInt(position + 40) : 0;
+            long end = (long) position + headerSize + length + (long) perSample * count;
+            if (length <= 0 || count < 0 || count > length || end > RawJournal.SEGMENT_SIZE) {
+                break;  //End of the written part, or a torn length
+            }
+            int checked = (int) end - position - 8;
+            if (record.length < checked) {
+                record = new byte[checked];
+            }
+            segment.position(position + 8);
+            segment.get(record, 0, checked);
+            crc.reset();
+            crc.update(record, 0, checked);
+            if ((int) crc.getValue() != segment.getInt(position + 4)) {
+                break;  //Torn write
+            }
+            long device = segment.getLong(position + 8);
+            long time = segment.getLong(position + 16);
+            UUID uuid = new UUID(segment.getLong(position + 24), segment.getLong(position + 32));
+            if (sampleTimes.length < count) {
+                sampleTimes = new long[count];
+                seqs = new int[count];
+            }
+            int times = position + headerSize + length;
+            for (int i = 0; i < count; i++) {
+                sampleTimes[i] = time + segment.getInt(times + 4 * i);
+                if (perSample == 8) {
+                    seqs[i] = segment.getInt(times + 4 * (count + i));
+                }
+            }
+            if (!replayRecord(device, time, uuid, length, headerSize - 8, count, perSample == 8)) {
+                return false;
+            }
+            position = (int) end;
+        }
+        return flush();
+    }
+
+    /**
+     * Decodes the record whose data starts at offset in record; count is its number of sample
+     * times, withSeqs whether seqs were journaled with them.
+     */
+    private boolean replayRecord(long device, long time, UUID uuid, int length, int offset, int count, boolean withSeqs) {
+        PacketDecoder decoder = decoders.get(uuid);
+        if (decoder == null) {
+            PacketLayout layout = PacketLayouts.get(uuid.toString());
+            if (layout == null) {
+                skipped++;
+                return true;
+            }
+            decoder = layout.compile();
+            decoders.put(uuid, decoder);
+        }
+        IngestLane lane = lanes.get(device);
+        if (lane == null) {
+            lane = new IngestLane(IngestLane.address(device), null, null);
+            lanes.put(device, lane);
+        }
+        if (data.length != length) {
+            data = new byte[length];    //The decoder counts samples from the array length
+        }
+        System.arraycopy(record, offset, data, 0, length);
+        if (batch.size + decoder.sampleCount(length) > batch.capacity() && !flush()) {
+            return false;
+        }
+        if (count == decoder.sampleCount(length)) {
+            lane.decode(decoder, data, sampleTimes, withSeqs ? seqs : null, batch);
+        } else {
+            lane.decode(decoder, data, time, batch);   //Version 2, or the layout changed since
+        }
+        records++;
+        return true;
+    }
+
+    private boolean flush() {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        if (!writer.commit(batch, ConflictPolicy.IGNORE)) {
+            Log.w(TAG, "flush: Replay insert failed");
+            return false;
+        }
+        samples += batch.size;
+        batch.clear();
+        return true;
+    }
+}
@@ -4,6 +4,21 @@ package com.unb.hci.android_ble;
  * Created by Ian on 2016-05-10.
  */
 public class KinematicData {
+    //Channel indices used by packet layouts, in caneFull column order
+    public static final int CHANNEL_FORCE = 0;
+    public static final int CHANNEL_ACC_X = 1;
+    public static final int CHANNEL_ACC_Y = 2;
+    public static final int CHANNEL_ACC_Z = 3;
+    public static final int CHANNEL_GYRO_X = 4;
+    public static final int CHANNEL_GYRO_Y = 5;
+    public static final int CHANNEL_GYRO_Z = 6;
+    public static final int CHANNEL_PITCH = 7;
+    public static final int CHANNEL_ROLL = 8;
+    public static final int CHANNEL_DISTANCE = 9;
+    public static final int CHANNEL_COUNT = 10;
+    public static final String[] CHANNEL_NAMES = {"force", "acc_x", "acc_y", "acc_z",
+            "gyro_x", "gyro_y", "gyro_z", "pitch", "roll", "distance"};
+
     public long time;
     public double force;
     public double accx;
@@ -14,6 +29,10 @@ public class KinematicData {
     public double gyroz;
     public double pitch;
     public double roll;
+    public double distance;
+
+    public KinematicData() {
+    }
 
     public KinematicData(long timeIn, double accxIn, double accyIn, double acczIn, double gyroxIn, double gyroyIn,
                          double gyrozIn, double pitchIn, double rollIn, double forceIn) {
@@ -29,11 +48,20 @@ public class KinematicData {
         roll = rollIn;
     }
 
+    public static int channelIndex(String name) {
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            if (CHANNEL_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     public String toString(){
         String out = Long.toString(time)+" "+ Double.toString(force)+" "+ Double.toString(accx)+
                 " "+ Double.toString(accy)+" "+ Double.toString(accz)+" "+ Double.toString(gyrox)+
                 " "+ Double.toString(gyroy)+" "+ Double.toString(gyroz)+" "+ Double.toString(pitch)+
-                " "+ Double.toString(roll)+" " ;
+                " "+ Double.toString(roll)+" "+ Double.toString(distance)+" " ;
         return out;
     }
 }
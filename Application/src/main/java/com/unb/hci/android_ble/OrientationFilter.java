@@ -0,0 +1,79 @@
+package com.unb.hci.android_ble;
+
+/**
+ * Complementary filter estimating pitch and roll (degrees) for one device as samples arrive.
+ * The gyro is integrated for short-term changes and pulled towards the tilt measured from
+ * gravity on the accelerometer with time constant TAU_MS, which cancels gyro drift while
+ * ignoring brief accelerations such as cane strikes. State is three primitives per device, so
+ * orientation costs a few flops per sample at capture time instead of an offline pass.
+ *
+ * Not thread safe; each device's IngestLane feeds its own filter under the lane's lock.
+ */
+public class OrientationFilter {
+
+    private static final double TAU_MS = 500;
+    private static final long MAX_GAP_MS = 1000;    //Longer gaps restart from the accelerometer
+
+    private double pitch;
+    private double roll;    //In [-180, 180)
+    private long lastTime = Long.MIN_VALUE;
+    private int sharing;            //Samples so far stamped lastTime
+    private double filterTime;      //ms integrated to; runs ahead of lastTime by the samples sharing it
+    private double periodMs;        //Sample interval measured from shared timestamps, for unknown periods
+
+    /**
+     * Updates the estimate with one decoded sample and writes pitch and roll into it. gyroScale
+     * converts the gyro channels to degrees per second; samplePeriodUs (0 if unknown) is how much
+     * time a sample stamped like the one before it stands for.
+     */
+    public void update(long time, double[] channels, double gyroScale, long samplePeriodUs) {
+        double ax = channels[KinematicData.CHANNEL_ACC_X];
+        double ay = channels[KinematicData.CHANNEL_ACC_Y];
+        double az = channels[KinematicData.CHANNEL_ACC_Z];
+        double accRoll = Math.toDegrees(Math.atan2(ay, az));
+        double accPitch = Math.toDegrees(Math.atan2(-ax, Math.sqrt(ay * ay + az * az)));
+        long dt = time - lastTime;
+        if (lastTime == Long.MIN_VALUE || dt < 0 || dt > MAX_GAP_MS) {
+            pitch = accPitch;
+            roll = wrap(accRoll);
+            filterTime = time;
+            sharing = 1;
+        } else {
+            double stepMs;
+            if (dt == 0) {
+                //Several samples timed by one arrival: each still covers a sample period
+                stepMs = samplePeriodUs > 0 ? samplePeriodUs / 1000.0 : periodMs;
+                filterTime += stepMs;
+                sharing++;
+            } else {
+                if (sharing > 1) {
+                    periodMs = dt / (double) sharing;
+                }
+                stepMs = Math.max(0, time - filterTime);
+                filterTime = Math.max(filterTime, time);
+                sharing = 1;
+            }
+            double seconds = stepMs / 1000.0;
+            double alpha = TAU_MS / (TAU_MS + stepMs);
+            double gyroRoll = roll + channels[KinematicData.CHANNEL_GYRO_X] * gyroScale * seconds;
+            double gyroPitch = pitch + channels[KinematicData.CHANNEL_GYRO_Y] * gyroScale * seconds;
+            //Blend with the accelerometer roll taken on the gyro estimate's side of the +/-180 wrap
+            accRoll = gyroRoll + wrap(accRoll - gyroRoll);
+            roll = wrap(alpha * gyroRoll + (1 - alpha) * accRoll);
+            pitch = alpha * gyroPitch + (1 - alpha) * accPitch;
+        }
+        lastTime = time;
+        channels[KinematicData.CHANNEL_PITCH] = pitch;
+        channels[KinematicData.CHANNEL_ROLL] = roll;
+    }
+
+    //Angle in degrees brought into [-180, 180)
+    static double wrap(double degrees) {
+        return degrees - 360 * Math.floor((degrees + 180) / 360);
+    }
+
+    public void reset() {
+        lastTime = Long.MIN_VALUE;
+        sharing = 0;
+    }
+}
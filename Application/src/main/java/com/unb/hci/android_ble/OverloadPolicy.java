@@ -0,0 +1,12 @@
+package com.unb.hci.android_ble;
+
+/**
+ * What the ingest path does with a new sample when storage has fallen behind and the queue to
+ * the storage writer is full (or, for DECIMATE, filling up).
+ */
+public enum OverloadPolicy {
+    BLOCK,          //Wait for room, up to a bounded time, then drop the new sample
+    DROP_OLDEST,    //Discard the oldest queued sample to make room
+    DROP_NEWEST,    //Discard the new sample
+    DECIMATE        //Above the high watermark keep only every n-th sample per device
+}
@@ -0,0 +1,272 @@
+package com.unb.hci.android_ble;
+
+/**
+ * Decoder produced by PacketLayout.compile(). All layout decisions (field widths, signedness,
+ * byte order, scaling) are resolved when the decoder is built, so decode() is a fixed sequence
+ * of reads with no per-packet lookups and no allocation. The cane firmware's layout gets a
+ * hand-written straight-line decoder (CaneDecoder); layouts loaded from file use the generic
+ * per-field decoders.
+ */
+public abstract class PacketDecoder {
+
+    public final PacketLayout layout;
+    public final int length;            //Bytes consumed per sample
+    public final long samplePeriodUs;   //0 if unknown
+    public final int counterBits;       //0 if the layout has no device counter
+    public final long counterTickUs;
+    public final double gyroScale;      //Degrees per second per gyro unit, 0 if no orientation estimate
+    private final FieldReader counter;
+    private final int[] unmapped;       //Channels the layout does not provide, zeroed on every decode
+
+    PacketDecoder(PacketLayout layout) {
+        this.layout = layout;
+        this.length = layout.length;
+        this.samplePeriodUs = layout.getSamplePeriodUs();
+        this.counter = layout.counter == null ? null : FieldReader.create(layout.counter);
+        this.counterBits = layout.counter == null ? 0 : layout.counter.width * 8;
+        this.counterTickUs = layout.getCounterTickUs();
+        this.gyroScale = layout.getGyroScale();
+        boolean[] mapped = new boolean[KinematicData.CHANNEL_COUNT];
+        int count = 0;
+        for (PacketLayout.Field field : layout.fields) {
+            if (!mapped[field.channel]) {
+                mapped[field.channel] = true;
+                count++;
+            }
+        }
+        unmapped = new int[KinematicData.CHANNEL_COUNT - count];
+        int j = 0;
+        for (int i = 0; i < mapped.length; i++) {
+            if (!mapped[i]) {
+                unmapped[j++] = i;
+            }
+        }
+    }
+
+    /**
+     * Decodes the sample starting at offset into out, indexed by the KinematicData CHANNEL_
+     * constants. The caller must make sure at least length bytes are available.
+     */
+    public abstract void decode(byte[] input, int offset, double[] out);
+
+    //Zeroes the channels the layout does not provide
+    final void clearUnmapped(double[] out) {
+        for (int i = 0; i < unmapped.length; i++) {
+            out[unmapped[i]] = 0;
+        }
+    }
+
+    public final boolean hasCounter() {
+        return counter != null;
+    }
+
+    //Raw device counter of the sample starting at offset
+    public final long readCounter(byte[] input, int offset) {
+        return counter.read(input, offset + counter.offset);
+    }
+
+    //Number of whole samples carried by a packet of the given size
+    public final int sampleCount(int packetLength) {
+        return packetLength / length;
+    }
+
+    /**
+     * Timestamp of sample i of count in a packet that arrived at arrivalTime. The last sample is
+     * taken to be the newest, earlier ones are spaced back by the sample period.
+     */
+    public final long sampleTime(long arrivalTime, int i, int count) {
+        return arrivalTime - ((count - 1 - i) * samplePeriodUs) / 1000;
+    }
+
+    static PacketDecoder compile(PacketLayout layout) {
+        if (CaneDecoder.matches(layout)) {
+            return new CaneDecoder(layout);
+        }
+        boolean plainInt16 = true;
+        for (PacketLayout.Field field : layout.fields) {
+            plainInt16 &= field.isPlainInt16();
+        }
+        if (plainInt16) {
+            return new Int16Decoder(layout);
+        }
+        return new FieldDecoder(layout);
+    }
+
+    //The cane firmware's fields (PacketLayouts.CANE) as eight fixed reads, like DataRead.translateData
+    static final class CaneDecoder extends PacketDecoder {
+
+        CaneDecoder(PacketLayout layout) {
+            super(layout);
+        }
+
+        //True if layout's fields are exactly the cane's; timing and gyro settings may differ
+        static boolean matches(PacketLayout layout) {
+            PacketLayout cane = PacketLayouts.CANE;
+            if (layout.length != cane.length || layout.fields.size() != cane.fields.size()) {
+                return false;
+            }
+            for (int i = 0; i < cane.fields.size(); i++) {
+                PacketLayout.Field field = layout.fields.get(i);
+                PacketLayout.Field expected = cane.fields.get(i);
+                if (!field.isPlainInt16() || field.channel != expected.channel || field.offset != expected.offset) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void decode(byte[] input, int offset, double[] out) {
+            out[KinematicData.CHANNEL_GYRO_X] = DataRead.readInt16(input, offset);
+            out[KinematicData.CHANNEL_GYRO_Y] = DataRead.readInt16(input, offset + 2);
+            out[KinematicData.CHANNEL_GYRO_Z] = DataRead.readInt16(input, offset + 4);
+            out[KinematicData.CHANNEL_ACC_X] = DataRead.readInt16(input, offset + 6);
+            out[KinematicData.CHANNEL_ACC_Y] = DataRead.readInt16(input, offset + 8);
+            out[KinematicData.CHANNEL_ACC_Z] = DataRead.readInt16(input, offset + 10);
+            out[KinematicData.CHANNEL_DISTANCE] = DataRead.readInt16(input, offset + 12);
+            out[KinematicData.CHANNEL_FORCE] = DataRead.readInt16(input, offset + 14);
+            out[KinematicData.CHANNEL_PITCH] = 0;
+            out[KinematicData.CHANNEL_ROLL] = 0;
+        }
+    }
+
+    //Fast path for other layouts made only of unscaled little-endian int16 fields
+    static final class Int16Decoder extends PacketDecoder {
+        private final int[] offsets;
+        private final int[] channels;
+
+        Int16Decoder(PacketLayout layout) {
+            super(layout);
+            int n = layout.fields.size();
+            offsets = new int[n];
+            channels = new int[n];
+            for (int i = 0; i < n; i++) {
+                offsets[i] = layout.fields.get(i).offset;
+                channels[i] = layout.fields.get(i).channel;
+            }
+        }
+
+        @Override
+        public void decode(byte[] input, int offset, double[] out) {
+            clearUnmapped(out);
+            for (int i = 0; i < offsets.length; i++) {
+                int at = offset + offsets[i];
+                out[channels[i]] = (short) ((input[at] & 0xFF) | (input[at + 1] << 8));
+            }
+        }
+    }
+
+    //General path: each field gets a reader specialised for its width, sign and byte order
+    static final class FieldDecoder extends PacketDecoder {
+        private final FieldReader[] readers;
+
+        FieldDecoder(PacketLayout layout) {
+            super(layout);
+            readers = new FieldReader[layout.fields.size()];
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = FieldReader.create(layout.fields.get(i));
+            }
+        }
+
+        @Override
+        public void decode(byte[] input, int offset, double[] out) {
+            clearUnmapped(out);
+            for (FieldReader reader : readers) {
+                out[reader.channel] = reader.read(input, offset + reader.offset) * reader.scale + reader.bias;
+            }
+        }
+    }
+
+    abstract static class FieldReader {
+        final int channel;
+        final int offset;
+        final double scale;
+        final double bias;
+
+        FieldReader(PacketLayout.Field field) {
+            channel = field.channel;
+            offset = field.offset;
+            scale = field.scale;
+            bias = field.bias;
+        }
+
+        abstract long read(byte[] in, int at);
+
+        static FieldReader create(PacketLayout.Field field) {
+            switch (field.width) {
+                case PacketLayout.WIDTH_8:
+                    return field.signed ? new S8(field) : new U8(field);
+                case PacketLayout.WIDTH_16:
+                    if (field.littleEndian) {
+                        return field.signed ? new S16LE(field) : new U16LE(field);
+                    }
+                    return field.signed ? new S16BE(field) : new U16BE(field);
+                default:
+                    if (field.littleEndian) {
+                        return field.signed ? new S32LE(field) : new U32LE(field);
+                    }
+                    return field.signed ? new S32BE(field) : new U32BE(field);
+            }
+        }
+    }
+
+    static final class S8 extends FieldReader {
+        S8(PacketLayout.Field f) { super(f); }
+        long read(byte[] in, int at) { return in[at]; }
+    }
+
+    static final class U8 extends FieldReader {
+        U8(PacketLayout.Field f) { super(f); }
+        long read(byte[] in, int at) { return in[at] & 0xFF; }
+    }
+
+    static final class S16LE extends FieldReader {
+        S16LE(PacketLayout.Field f) { super(f); }
+        long read(byte[] in, int at) { return (short) ((in[at] & 0xFF) | (in[at + 1] << 8)); }
+    }
+
+    static final class U16LE extends FieldReader {
+        U16LE(PacketLayout.Field f) { super(f); }
+        long read(byte[] in, int at) { return (in[at] & 0xFF) | ((in[at + 1] & 0xFF) << 8); }
+    }
+
+    static final class S16BE extends FieldReader {
+        S16BE(PacketLayout.Field f) { super(f); }
+        long read(byte[] in, int at) { return (short) ((in[at] << 8) | (in[at + 1] & 0xFF)); }
+    }
+
+    static final class U16BE extends FieldReader {
+        U16BE(PacketLayout.Field f) { super(f); }
+        long read(byte[] in, int at) { return ((in[at] & 0xFF) << 8) | (in[at + 1] & 0xFF); }
+    }
+
+    static final class S32LE extends FieldReader {
+        S32LE(PacketLayout.Field f) { super(f); }
+        long read(byte[] in, int at) {
+            return (in[at] & 0xFF) | ((in[at + 1] & 0xFF) << 8) | ((in[at + 2] & 0xFF) << 16) | (in[at + 3] << 24);
+        }
+    }
+
+    static final class U32LE extends FieldReader {
+        U32LE(PacketLayout.Field f) { super(f); }
+        long read(byte[] in, int at) {
+            return ((in[at] & 0xFF) | ((in[at + 1] & 0xFF) << 8) | ((in[at + 2] & 0xFF) << 16) | (in[at + 3] << 24))
+                    & 0xFFFFFFFFL;
+        }
+    }
+
+    static final class S32BE extends FieldReader {
+        S32BE(PacketLayout.Field f) { super(f); }
+        long read(byte[] in, int at) {
+            return (in[at] << 24) | ((in[at + 1] & 0xFF) << 16) | ((in[at + 2] & 0xFF) << 8) | (in[at + 3] & 0xFF);
+        }
+    }
+
+    static final class U32BE extends FieldReader {
+        U32BE(PacketLayout.Field f) { super(f); }
+        long read(byte[] in, int at) {
+            return ((in[at] << 24) | ((in[at + 1] & 0xFF) << 16) | ((in[at + 2] & 0xFF) << 8) | (in[at + 3] & 0xFF))
+                    & 0xFFFFFFFFL;
+        }
+    }
+}
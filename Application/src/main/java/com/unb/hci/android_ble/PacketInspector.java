@@ -0,0 +1,125 @@
+package com.unb.hci.android_ble;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Debug view of raw notifications. While disabled (the default) record() is a single volatile
+ * read, so recording pays nothing for it. While enabled every sampleEvery-th packet of each
+ * device is copied into a fixed ring of the last capacity packets, and hex is only rendered
+ * when a dump is asked for.
+ */
+public class PacketInspector {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final int capacity;
+    private volatile boolean enabled;
+    private volatile int sampleEvery = 1;
+    private final ConcurrentHashMap<String, PacketRing> rings = new ConcurrentHashMap<String, PacketRing>();
+
+    public PacketInspector(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setEnabled(boolean enabledIn) {
+        enabled = enabledIn;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    //Keeps one packet in every n; 1 keeps them all
+    public void setSampleEvery(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("Invalid sampling ratio 1/" + n);
+        }
+        sampleEvery = n;
+    }
+
+    public void record(String address, byte[] data, long time) {
+        if (!enabled || data == null) {
+            return;
+        }
+        PacketRing ring = rings.get(address);
+        if (ring == null) {
+            ring = new PacketRing(capacity);
+            PacketRing raced = rings.putIfAbsent(address, ring);
+            if (raced != null) {
+                ring = raced;
+            }
+        }
+        ring.add(data, time, sampleEvery);
+    }
+
+    //Renders the kept packets of a device, oldest first, one "time length hex" line each
+    public String dump(String address) {
+        PacketRing ring = rings.get(address);
+        return ring == null ? "" : ring.dump();
+    }
+
+    public void clear() {
+        rings.clear();
+    }
+
+    //Hex of len bytes from off, space separated, via a nibble table rather than String.format
+    public static String toHex(byte[] data, int off, int len) {
+        if (len == 0) {
+            return "";
+        }
+        char[] out = new char[len * 3 - 1];
+        int j = 0;
+        for (int i = off; i < off + len; i++) {
+            if (j > 0) {
+                out[j++] = ' ';
+            }
+            out[j++] = HEX[(data[i] >> 4) & 0x0F];
+            out[j++] = HEX[data[i] & 0x0F];
+        }
+        return new String(out);
+    }
+
+    private static class PacketRing {
+        private final byte[][] packets;
+        private final int[] lengths;
+        private final long[] times;
+        private int next;
+        private int count;
+        private long seen;
+
+        PacketRing(int capacity) {
+            packets = new byte[capacity][];
+            lengths = new int[capacity];
+            times = new long[capacity];
+        }
+
+        synchronized void add(byte[] data, long time, int sampleEvery) {
+            if (seen++ % sampleEvery != 0) {
+                return;
+            }
+            byte[] slot = packets[next];
+            if (slot == null || slot.length < data.length) {
+                slot = new byte[data.length];
+                packets[next] = slot;
+            }
+            System.arraycopy(data, 0, slot, 0, data.length);
+            lengths[next] = data.length;
+            times[next] = time;
+            next = (next + 1) % packets.length;
+            count = Math.min(count + 1, packets.length);
+        }
+
+        synchronized String dump() {
+            SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+            StringBuilder out = new StringBuilder();
+            for (int k = 0; k < count; k++) {
+                int i = (next - count + k + packets.length) % packets.length;
+                out.append(format.format(new Date(times[i]))).append(' ').append(lengths[i]).append(' ')
+                        .append(toHex(packets[i], 0, lengths[i])).append('\n');
+            }
+            return out.toString();
+        }
+    }
+}
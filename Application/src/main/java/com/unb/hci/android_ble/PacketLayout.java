@@ -0,0 +1,266 @@
+package com.unb.hci.android_ble;
+
+import java.util.ArrayList;
+
+/**
+ * Describes how the bytes of one sensor sample map onto KinematicData channels. A layout is
+ * only a description; call compile() once (at service discovery) to get the PacketDecoder that
+ * runs on every notification.
+ *
+ * Layouts can also be written as text so new firmware can be supported without an app update,
+ * e.g. "length=16; gyro_x=0:s16le; gyro_y=2:s16le; acc_x=6:s16le:0.00059875".
+ * Each field is channel=offset:type[:scale[:bias]], where type is s8, u8, s16le, u16le, s16be,
+ * u16be, s32le, u32le, s32be or u32be. Decoded values are raw * scale + bias.
+ *
+ * A notification may carry several samples back to back; the decoder is applied every length
+ * bytes. When the firmware's sample period is known (period_us=... in a spec) each sample is
+ * stamped relative to the packet's arrival time, otherwise they all share the arrival time.
+ *
+ * If the firmware includes a sample counter or timestamp, declare it with
+ * counter=offset:type:tick_us (an unsigned type; tick_us is the duration of one count). Sample
+ * times are then reconstructed from the device clock by ClockSync rather than from arrival.
+ *
+ * gyro_dps=... gives the degrees per second of one unit of the decoded gyro channels. When set,
+ * pitch and roll are estimated from the acc and gyro channels as samples arrive (see
+ * OrientationFilter), overwriting any pitch/roll fields.
+ */
+public class PacketLayout {
+
+    public static final int WIDTH_8 = 1;
+    public static final int WIDTH_16 = 2;
+    public static final int WIDTH_32 = 4;
+
+    public final String name;
+    public final int length;    //Bytes per sample
+    private long samplePeriodUs;    //0 if unknown
+    final ArrayList<Field> fields = new ArrayList<Field>();
+    Field counter;                  //null if the firmware sends no counter
+    private long counterTickUs;
+    private double gyroDegPerUnit;  //0: no orientation estimate
+    private PacketDecoder compiled;
+
+    static class Field {
+        final int channel;
+        final int offset;
+        final int width;
+        final boolean signed;
+        final boolean littleEndian;
+        final double scale;
+        final double bias;
+
+        Field(int channel, int offset, int width, boolean signed, boolean littleEndian, double scale, double bias) {
+            this.channel = channel;
+            this.offset = offset;
+            this.width = width;
+            this.signed = signed;
+            this.littleEndian = littleEndian;
+            this.scale = scale;
+            this.bias = bias;
+        }
+
+        boolean isPlainInt16() {
+            return width == WIDTH_16 && signed && littleEndian && scale == 1 && bias == 0;
+        }
+    }
+
+    public PacketLayout(String name, int length) {
+        this.name = name;
+        this.length = length;
+    }
+
+    public PacketLayout addField(int channel, int offset, int width, boolean signed, boolean littleEndian,
+                                 double scale, double bias) {
+        if (channel < 0 || channel >= KinematicData.CHANNEL_COUNT) {
+            throw new IllegalArgumentException("Unknown channel " + channel);
+        }
+        if (width != WIDTH_8 && width != WIDTH_16 && width != WIDTH_32) {
+            throw new IllegalArgumentException("Unsupported field width " + width);
+        }
+        if (offset < 0 || offset + width > length) {
+            throw new IllegalArgumentException("Field at " + offset + " does not fit in " + length + " bytes");
+        }
+        fields.add(new Field(channel, offset, width, signed, littleEndian, scale, bias));
+        compiled = null;
+        return this;
+    }
+
+    //Shorthand for the plain little-endian int16 fields the cane firmware sends
+    public PacketLayout addInt16(int channel, int offset) {
+        return addField(channel, offset, WIDTH_16, true, true, 1, 0);
+    }
+
+    public PacketLayout setSamplePeriodUs(long periodUs) {
+        if (periodUs < 0) {
+            throw new IllegalArgumentException("Negative sample period " + periodUs);
+        }
+        samplePeriodUs = periodUs;
+        compiled = null;
+        return this;
+    }
+
+    //Declares an unsigned device counter or timestamp, one count lasting tickUs
+    public PacketLayout setCounter(int offset, int width, boolean littleEndian, long tickUs) {
+        if (width != WIDTH_8 && width != WIDTH_16 && width != WIDTH_32) {
+            throw new IllegalArgumentException("Unsupported counter width " + width);
+        }
+        if (offset < 0 || offset + width > length) {
+            throw new IllegalArgumentException("Counter at " + offset + " does not fit in " + length + " bytes");
+        }
+        if (tickUs <= 0) {
+            throw new IllegalArgumentException("Counter tick must be positive");
+        }
+        counter = new Field(-1, offset, width, false, littleEndian, 1, 0);
+        counterTickUs = tickUs;
+        compiled = null;
+        return this;
+    }
+
+    //Enables orientation estimation; degPerUnit converts the gyro channels to degrees per second
+    public PacketLayout setGyroScale(double degPerUnit) {
+        if (degPerUnit < 0) {
+            throw new IllegalArgumentException("Negative gyro scale " + degPerUnit);
+        }
+        gyroDegPerUnit = degPerUnit;
+        compiled = null;
+        return this;
+    }
+
+    public double getGyroScale() {
+        return gyroDegPerUnit;
+    }
+
+    public long getCounterTickUs() {
+        return counterTickUs;
+    }
+
+    public long getSamplePeriodUs() {
+        return samplePeriodUs;
+    }
+
+    public int getFieldCount() {
+        return fields.size();
+    }
+
+    //Returns the decoder for this layout, compiling it on first use
+    public synchronized PacketDecoder compile() {
+        if (compiled == null) {
+            compiled = PacketDecoder.compile(this);
+        }
+        return compiled;
+    }
+
+    public static PacketLayout parse(String name, String spec) {
+        String[] parts = spec.split(";");
+        int length = -1;
+        long periodUs = 0;
+        double gyroScale = 0;
+        String counterSpec = null;
+        ArrayList<String[]> fieldSpecs = new ArrayList<String[]>();
+        for (String part : parts) {
+            part = part.trim();
+            if (part.length() == 0) {
+                continue;
+            }
+            int eq = part.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value in layout: " + part);
+            }
+            String key = part.substring(0, eq).trim();
+            String value = part.substring(eq + 1).trim();
+            if (key.equalsIgnoreCase("length")) {
+                length = Integer.parseInt(value);
+            } else if (key.equalsIgnoreCase("counter")) {
+                counterSpec = value;
+            } else if (key.equalsIgnoreCase("period_us")) {
+                periodUs = Long.parseLong(value);
+            } else if (key.equalsIgnoreCase("gyro_dps")) {
+                gyroScale = Double.parseDouble(value);
+            } else {
+                fieldSpecs.add(new String[]{key, value});
+            }
+        }
+        if (length <= 0) {
+            throw new IllegalArgumentException("Layout " + name + " has no length");
+        }
+        PacketLayout layout = new PacketLayout(name, length).setSamplePeriodUs(periodUs).setGyroScale(gyroScale);
+        for (String[] fieldSpec : fieldSpecs) {
+            int channel = KinematicData.channelIndex(fieldSpec[0]);
+            if (channel < 0) {
+                throw new IllegalArgumentException("Unknown channel " + fieldSpec[0]);
+            }
+            String[] args = fieldSpec[1].split(":");
+            if (args.length < 2) {
+                throw new IllegalArgumentException("Expected offset:type for " + fieldSpec[0]);
+            }
+            String type = args[1].trim().toLowerCase();
+            double scale = args.length > 2 ? Double.parseDouble(args[2].trim()) : 1;
+            double bias = args.length > 3 ? Double.parseDouble(args[3].trim()) : 0;
+            layout.addField(channel, Integer.parseInt(args[0].trim()), parseWidth(type), parseSigned(type),
+                    !type.endsWith("be"), scale, bias);
+        }
+        if (counterSpec != null) {
+            String[] args = counterSpec.split(":");
+            if (args.length != 3) {
+                throw new IllegalArgumentException("Expected offset:type:tick_us for counter");
+            }
+            String type = args[1].trim().toLowerCase();
+            if (parseSigned(type)) {
+                throw new IllegalArgumentException("Counter must be unsigned");
+            }
+            layout.setCounter(Integer.parseInt(args[0].trim()), parseWidth(type), !type.endsWith("be"),
+                    Long.parseLong(args[2].trim()));
+        }
+        return layout;
+    }
+
+    private static boolean parseSigned(String type) {
+        if (type.startsWith("s")) {
+            return true;
+        } else if (type.startsWith("u")) {
+            return false;
+        }
+        throw new IllegalArgumentException("Unknown field type " + type);
+    }
+
+    private static int parseWidth(String type) {
+        String bits = type.substring(1).replace("le", "").replace("be", "");
+        if (bits.equals("8")) {
+            return WIDTH_8;
+        } else if (bits.equals("16")) {
+            return WIDTH_16;
+        } else if (bits.equals("32")) {
+            return WIDTH_32;
+        }
+        throw new IllegalArgumentException("Unknown field type " + type);
+    }
+
+    private static String typeName(Field field) {
+        String name = (field.signed ? "s" : "u") + (field.width * 8);
+        if (field.width > WIDTH_8) {
+            name += field.littleEndian ? "le" : "be";
+        }
+        return name;
+    }
+
+    public String toString() {
+        StringBuilder out = new StringBuilder("length=").append(length);
+        if (samplePeriodUs > 0) {
+            out.append("; period_us=").append(samplePeriodUs);
+        }
+        if (gyroDegPerUnit > 0) {
+            out.append("; gyro_dps=").append(gyroDegPerUnit);
+        }
+        for (Field field : fields) {
+            out.append("; ").append(KinematicData.CHANNEL_NAMES[field.channel]).append('=')
+                    .append(field.offset).append(':').append(typeName(field));
+            if (field.scale != 1 || field.bias != 0) {
+                out.append(':').append(field.scale).append(':').append(field.bias);
+            }
+        }
+        if (counter != null) {
+            out.append("; counter=").append(counter.offset).append(':').append(typeName(counter))
+                    .append(':').append(counterTickUs);
+        }
+        return out.toString();
+    }
+}
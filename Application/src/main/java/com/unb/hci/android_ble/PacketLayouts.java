@@ -0,0 +1,91 @@
+package com.unb.hci.android_ble;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Packet layouts registered per characteristic UUID. The built-in cane layout is always
+ * present; extra or replacement layouts can be dropped into packet_layouts.txt in the app's
+ * external files directory, one "uuid = spec" per line (see PacketLayout for the spec format).
+ */
+public class PacketLayouts {
+    private final static String TAG = PacketLayouts.class.getSimpleName();
+
+    public static final String LAYOUT_FILE_NAME = "packet_layouts.txt";
+    public static final String CANE_DATA_UUID = "0000ccc1-0000-1000-8000-00805f9b34fb";
+
+    // time, accX, accY, accZ, gyroX, gyroY, gyroZ, Dist, FSR1
+    // Gyro in raw counts of an MPU-6050 at its default +/-250 deg/s range (131 counts per deg/s)
+    public static final PacketLayout CANE = new PacketLayout("cane", DataRead.objLength)
+            .addInt16(KinematicData.CHANNEL_GYRO_X, 0)
+            .addInt16(KinematicData.CHANNEL_GYRO_Y, 2)
+            .addInt16(KinematicData.CHANNEL_GYRO_Z, 4)
+            .addInt16(KinematicData.CHANNEL_ACC_X, 6)
+            .addInt16(KinematicData.CHANNEL_ACC_Y, 8)
+            .addInt16(KinematicData.CHANNEL_ACC_Z, 10)
+            .addInt16(KinematicData.CHANNEL_DISTANCE, 12)
+            .addInt16(KinematicData.CHANNEL_FORCE, 14)
+            .setGyroScale(1 / 131.0);
+
+    // Layouts keyed by upper case characteristic UUID
+    private static final Map<String, PacketLayout> sLayouts = new ConcurrentHashMap<String, PacketLayout>();
+
+    static {
+        register(CANE_DATA_UUID, CANE);
+    }
+
+    public static void register(String uuid, PacketLayout layout) {
+        sLayouts.put(uuid.toUpperCase(), layout);  // To avoid problems with lowercase/uppercase
+    }
+
+    public static PacketLayout get(String uuid) {
+        return sLayouts.get(uuid.toUpperCase());
+    }
+
+    //Reads extra layouts from file, returns the number registered. Bad lines are logged and skipped
+    public static int load(File file) {
+        if (file == null || !file.isFile()) {
+            return 0;
+        }
+        int loaded = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                int eq = line.indexOf('=');
+                if (eq < 0) {
+                    Log.w(TAG, "load: Skipping line without uuid: " + line);
+                    continue;
+                }
+                String uuid = line.substring(0, eq).trim();
+                try {
+                    register(uuid, PacketLayout.parse(uuid, line.substring(eq + 1)));
+                    loaded++;
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "load: Bad layout for " + uuid + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "load: Could not read " + file + ": " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return loaded;
+    }
+}
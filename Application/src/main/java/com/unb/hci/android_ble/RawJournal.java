@@ -0,0 +1,310 @@
+package com.unb.hci.android_ble;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of raw notifications, the first place received data lands. Records are
+ * copied into fixed-size memory-mapped segment files, so an append is a bounds check and a
+ * memcpy into the page cache and survives the process being killed. SQLite is filled behind it
+ * by the StorageWriter, which reports back how far it has committed (checkpoint()); segments
+ * wholly behind the checkpoint are deleted. Segments left by a killed process are replayed into
+ * SQLite by JournalReplay.
+ *
+ * Segment layout (little endian): a HEADER_SIZE header of magic, version, committed offset and
+ * a spare int, then records of
+ *   int length, int crc, long device, long time, long uuidMsb, long uuidLsb, int samples,
+ *   byte[length] data, int[samples] sample times, int[samples] seqs
+ * where crc is the CRC32 of everything after it, the sample times are the decoded samples'
+ * timestamps less time and the seqs their SampleBatch seqs, so a replay stores them under the
+ * keys they had live. Version 3 records lack the seqs, version 2 records also samples and the
+ * sample times. A zero length marks the end of the written
+ * part of a segment; a bad length or crc marks a torn write, and nothing after it is trusted.
+ *
+ * Positions are (segment index << 32) | offset just past a record. They only increase within a
+ * journal.
+ */
+public class RawJournal {
+    private final static String TAG = RawJournal.class.getSimpleName();
+
+    public static final String DIRECTORY_NAME = "journal";
+    public static final int SEGMENT_SIZE = 4 << 20;
+    static final int MAGIC = 0x4C4E4A50;    //"PJNL"
+    static final int VERSION = 4;
+    static final int VERSION_WITHOUT_SEQS = 3;      //Still replayed, seqs counted afresh
+    static final int VERSION_WITHOUT_TIMES = 2;     //Still replayed, timed afresh
+    static final int HEADER_SIZE = 16;
+    static final int COMMITTED_OFFSET = 8;  //Header field: offset up to which records are in SQLite
+    static final int RECORD_HEADER_SIZE = 44;
+    static final int CHECKED_HEADER_SIZE = 36;  //Record header fields covered by the crc
+
+    private final File directory;
+    private final TreeMap<Integer, MappedByteBuffer> segments = new TreeMap<Integer, MappedByteBuffer>();
+    private MappedByteBuffer current;
+    private int currentIndex;
+    private MappedByteBuffer spare;     //Segment currentIndex + 1, mapped by settle()
+    private int preparing = -1;         //Index settle() is mapping outside the lock, or -1
+    private final ArrayList<MappedByteBuffer> unforced = new ArrayList<MappedByteBuffer>();
+    private long appended;
+    private long appendedBytes;
+    private final byte[] header = new byte[CHECKED_HEADER_SIZE];
+    private final ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+    private byte[] times = new byte[128];
+    private ByteBuffer timesBuffer = ByteBuffer.wrap(times).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Opens a journal in directory, starting a new segment after any left by a previous run; the
+     * old segments are left untouched for recovery.
+     */
+    public RawJournal(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        int last = -1;
+        for (int index : listSegments(directory)) {
+            last = Math.max(last, index);
+        }
+        openSegment(last + 1);
+    }
+
+    /**
+     * Appends one notification that arrived at time, with the timestamps and seqs its first
+     * samples entries of sampleTimes and seqs were decoded with, and returns its position.
+     */
+    public synchronized long append(long device, long time, UUID uuid, byte[] data, long[] sampleTimes, int[] seqs,
+                                    int samples) throws IOException {
+        if (current == null) {
+            throw new IOException("Journal closed");
+        }
+        int needed = RECORD_HEADER_SIZE + data.length + 8 * samples;
+        if (needed > SEGMENT_SIZE - HEADER_SIZE) {
+            throw new IOException("Record of " + data.length + " bytes is larger than a segment");
+        }
+        if (current.remaining() < needed + 4) {     //Keep room for the zero end marker
+            nextSegment();
+        }
+        if (times.length < 8 * samples) {
+            times = new byte[8 * samples];
+            timesBuffer = ByteBuffer.wrap(times).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        timesBuffer.clear();
+        for (int i = 0; i < samples; i++) {
+            timesBuffer.putInt((int) (sampleTimes[i] - time));
+        }
+        for (int i = 0; i < samples; i++) {
+            timesBuffer.putInt(seqs[i]);
+        }
+        headerBuffer.clear();
+        headerBuffer.putLong(device).putLong(time)
+                .putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).putInt(samples);
+        crc.reset();
+        crc.update(header, 0, CHECKED_HEADER_SIZE);
+        crc.update(data, 0, data.length);
+        crc.update(times, 0, 8 * samples);
+        current.putInt(data.length);
+        current.putInt((int) crc.getValue());
+        current.put(header);
+        current.put(data);
+        current.put(times, 0, 8 * samples);
+        appended++;
+        appendedBytes += needed;
+        return position(currentIndex, current.position());
+    }
+
+    /**
+     * Records that everything up to position is in SQLite, and deletes segments that are wholly
+     * behind it.
+     */
+    public synchronized void checkpoint(long position) {
+        if (current == null) {
+            return;
+        }
+        int index = (int) (position >>> 32);
+        MappedByteBuffer segment = segments.get(index);
+        if (segment != null) {
+            segment.putInt(COMMITTED_OFFSET, (int) position);
+        }
+        while (!segments.isEmpty() && segments.firstKey() < index) {
+            int old = segments.pollFirstEntry().getKey();
+            if (!segmentFile(directory, old).delete()) {
+                Log.w(TAG, "checkpoint: Could not delete segment " + old);
+            }
+        }
+    }
+
+    /**
+     * Forces segments filled since the last call to disk and maps the next segment if it is not
+     * ready. Does the file work outside this object's monitor, so appends carry on meanwhile.
+     * Called from the StorageWriter thread.
+     */
+    public void settle() {
+        MappedByteBuffer[] finished;
+        int next;
+        synchronized (this) {
+            if (current == null) {
+                return;
+            }
+            finished = unforced.toArray(new MappedByteBuffer[unforced.size()]);
+            unforced.clear();
+            next = spare == null ? currentIndex + 1 : -1;
+            preparing = next;
+        }
+        for (MappedByteBuffer segment : finished) {
+            segment.force();
+        }
+        if (next < 0) {
+            return;
+        }
+        MappedByteBuffer buffer = null;
+        try {
+            buffer = prepare(segmentFile(directory, next));
+        } catch (IOException e) {
+            Log.w(TAG, "settle: Cannot map segment " + next + ": " + e.getMessage());
+        }
+        synchronized (this) {
+            preparing = -1;
+            if (buffer != null && current != null && currentIndex + 1 == next) {
+                spare = buffer;
+                return;
+            }
+        }
+        //Closed, or an append could not wait and moved past it
+        if (buffer != null && !segmentFile(directory, next).delete()) {
+            Log.w(TAG, "settle: Could not delete segment " + next);
+        }
+    }
+
+    //Position just past the last appended record
+    public synchronized long getPosition() {
+        return position(currentIndex, current.position());
+    }
+
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    public synchronized long getAppendedBytes() {
+        return appendedBytes;
+    }
+
+    /**
+     * Deletes the journal files if everything appended has been checkpointed, otherwise leaves
+     * them for recovery. The journal must not be used afterwards.
+     */
+    public synchronized void close() {
+        if (current == null) {
+            return;
+        }
+        boolean consumed = current.getInt(COMMITTED_OFFSET) >= current.position();
+        for (int index : segments.keySet()) {
+            if (consumed && !segmentFile(directory, index).delete()) {
+                Log.w(TAG, "close: Could not delete segment " + index);
+            }
+        }
+        if (spare != null && !segmentFile(directory, currentIndex + 1).delete()) {
+            Log.w(TAG, "close: Could not delete spare segment");     //Empty, replays as nothing
+        }
+        segments.clear();
+        unforced.clear();
+        spare = null;
+        current = null;
+    }
+
+    //Moves on to the spare segment, or maps the next one here if settle() has not provided it
+    private void nextSegment() throws IOException {
+        unforced.add(current);      //Forced by the next settle()
+        MappedByteBuffer next = spare;
+        spare = null;
+        int index = currentIndex + 1;
+        if (next == null) {
+            if (index == preparing) {
+                index++;    //Being mapped by settle(), which drops it when it sees we moved on
+            }
+            next = prepare(segmentFile(directory, index));
+        }
+        install(index, next);
+    }
+
+    private void openSegment(int index) throws IOException {
+        install(index, prepare(segmentFile(directory, index)));
+    }
+
+    private void install(int index, MappedByteBuffer buffer) {
+        buffer.position(HEADER_SIZE);
+        segments.put(index, buffer);
+        current = buffer;
+        currentIndex = index;
+    }
+
+    //Maps a new segment file and writes its header
+    static MappedByteBuffer prepare(File file) throws IOException {
+        MappedByteBuffer buffer = map(file);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(COMMITTED_OFFSET, HEADER_SIZE);
+        return buffer;
+    }
+
+    static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } finally {
+            raf.close();    //The mapping stays valid without the file handle
+        }
+    }
+
+    static long position(int index, int offset) {
+        return ((long) index << 32) | offset;
+    }
+
+    //Journal directory of one device under root: its MAC without the colons
+    static File deviceDirectory(File root, String address) {
+        return new File(root, address.replace(":", "").toUpperCase(Locale.US));
+    }
+
+    static File segmentFile(File directory, int index) {
+        return new File(directory, String.format(Locale.US, "%08d.seg", index));
+    }
+
+    //Indexes of the segment files in directory, in ascending order
+    static int[] listSegments(File directory) {
+        String[] names = directory.list();
+        if (names == null) {
+            return new int[0];
+        }
+        int[] indexes = new int[names.length];
+        int n = 0;
+        for (String name : names) {
+            if (name.length() == 12 && name.endsWith(".seg")) {
+                try {
+                    int index = Integer.parseInt(name.substring(0, 8));
+                    indexes[n++] = index;
+                } catch (NumberFormatException e) {
+                    //Not ours
+                }
+            }
+        }
+        int[] out = new int[n];
+        System.arraycopy(indexes, 0, out, 0, n);
+        Arrays.sort(out);
+        return out;
+    }
+}
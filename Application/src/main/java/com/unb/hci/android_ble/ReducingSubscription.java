@@ -0,0 +1,48 @@
+package com.unb.hci.android_ble;
+
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Subscription for consumers such as live plots that want a fixed update rate rather than
+ * every sample. Reduction runs on the GATT thread, and the subscriber's executor only sees a
+ * few rows per interval, so the UI thread stays nearly idle during high-rate recording.
+ */
+public class ReducingSubscription extends SampleSubscription {
+    private final long intervalMs;
+    private final ReductionMode mode;
+    private final HashMap<String, SampleReducer> reducers = new HashMap<String, SampleReducer>();
+
+    ReducingSubscription(String address, Executor executor, SampleListener listener,
+                         double updateHz, ReductionMode mode) {
+        super(address, executor, listener);
+        if (!(updateHz > 0)) {
+            throw new IllegalArgumentException("Invalid update rate " + updateHz);
+        }
+        this.intervalMs = Math.max(1, Math.round(1000 / updateHz));
+        this.mode = mode;
+    }
+
+    @Override
+    synchronized void deliver(String deviceAddress, SampleBatch batch) {
+        if (isCancelled()) {
+            return;
+        }
+        SampleReducer reducer = reducers.get(deviceAddress);
+        if (reducer == null) {
+            reducer = new SampleReducer(intervalMs, mode);
+            reducers.put(deviceAddress, reducer);
+        }
+        //Most packets close no interval, so the output is only allocated when one does
+        SampleBatch out = null;
+        for (int i = 0; i < batch.size; i++) {
+            if (out == null && reducer.closes(batch.time[i])) {
+                out = new SampleBatch(reducer.rowsPerInterval() * (batch.size - i));
+            }
+            reducer.add(batch, i, out);
+        }
+        if (out != null) {
+            post(deviceAddress, out);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.unb.hci.android_ble;
+
+/**
+ * How a rate-limited subscription condenses the samples of one update interval.
+ */
+public enum ReductionMode {
+    LATEST,     //Last sample of the interval
+    MEAN,       //Mean of every channel (and time) over the interval
+    MIN_MAX     //Two rows per interval: per-channel minimum, then maximum (a trace envelope)
+}
@@ -0,0 +1,260 @@
+package com.unb.hci.android_ble;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps caneRollups up to date as data is committed: per device, every channel's mean, minimum
+ * and maximum over fixed buckets at each of LEVELS_MS. Zoomed out plots then read a few thousand
+ * rollup rows (DBHelper.getPlotBuckets) instead of aggregating millions of samples.
+ *
+ * Each level of each device has one open bucket. Samples only go into the finest level; when the
+ * device's samples move past a bucket, or it has been quiet past GRACE_MS, it is merged into its
+ * row and folded into the open bucket one level up. Rows carry the sample count, so a
+ * bucket written in several parts (restarts, late samples) merges exactly. Samples earlier than
+ * the device's open bucket, as packets that arrive out of order give, are gathered per bucket for
+ * the batch and merged into the closed buckets not written yet (see foldLate()) rather than
+ * closing and reopening the open buckets.
+ *
+ * Used only by the StorageWriter thread, and by DBHelper for the version 9 upgrade and to rebuild
+ * rows it deleted samples from.
+ */
+public class RollupPyramid {
+
+    public static final long[] LEVELS_MS = {1000, 10000, 60000, 600000};
+    private static final long GRACE_MS = 5000;     //Wait for late samples this long past a bucket
+
+    //One device's bucket at one level
+    public static class Bucket {
+        public final long device;
+        public final int level;     //Index into LEVELS_MS
+        public final long time;     //Start of the bucket, ms
+        public long samples;
+        public final double[] mean = new double[KinematicData.CHANNEL_COUNT];
+        public final double[] min = new double[KinematicData.CHANNEL_COUNT];
+        public final double[] max = new double[KinematicData.CHANNEL_COUNT];
+
+        public Bucket(long device, int level, long time) {
+            this.device = device;
+            this.level = level;
+            this.time = time;
+            for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                min[c] = Double.POSITIVE_INFINITY;
+                max[c] = Double.NEGATIVE_INFINITY;
+            }
+        }
+
+        public long end() {
+            return time + LEVELS_MS[level];
+        }
+
+        //Combines n samples with the given channel means, minima and maxima into this bucket
+        public void merge(long n, double[] means, double[] mins, double[] maxes) {
+            if (n <= 0) {
+                return;
+            }
+            long total = samples + n;
+            for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                mean[c] += (means[c] - mean[c]) * n / total;
+                min[c] = Math.min(min[c], mins[c]);
+                max[c] = Math.max(max[c], maxes[c]);
+            }
+            samples = total;
+        }
+    }
+
+    private final HashMap<Long, Bucket[]> open = new HashMap<Long, Bucket[]>();
+    private final ArrayList<Bucket> closed = new ArrayList<Bucket>();
+    private final HashMap<Long, HashMap<Long, Bucket>> late = new HashMap<Long, HashMap<Long, Bucket>>();   //By device, then time
+
+    //Accumulates every row of a committed batch into the finest level
+    public void add(SampleBatch batch) {
+        long device = 0;
+        Bucket[] levels = null;
+        for (int i = 0; i < batch.size; i++) {
+            if (levels == null || batch.device[i] != device) {
+                device = batch.device[i];
+                levels = open.get(device);
+                if (levels == null) {
+                    levels = new Bucket[LEVELS_MS.length];
+                    open.put(device, levels);
+                }
+            }
+            long time = batch.time[i];
+            Bucket bucket = levels[0];
+            if (bucket != null && time < bucket.time) {
+                bucket = latePart(device, time);
+            } else if (bucket == null || time >= bucket.end()) {
+                if (bucket != null) {
+                    close(levels, 0);
+                }
+                bucket = new Bucket(device, 0, time - time % LEVELS_MS[0]);
+                levels[0] = bucket;
+            }
+            bucket.samples++;
+            double[] sum = bucket.mean;     //Holds sums until the bucket closes
+            for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                double v = batch.channels[c][i];
+                sum[c] += v;
+                if (v < bucket.min[c]) {
+                    bucket.min[c] = v;
+                }
+                if (v > bucket.max[c]) {
+                    bucket.max[c] = v;
+                }
+            }
+        }
+        foldLate();
+    }
+
+    //The batch's part of the finest bucket holding a sample earlier than the device's open one
+    private Bucket latePart(long device, long time) {
+        long start = time - time % LEVELS_MS[0];
+        HashMap<Long, Bucket> parts = late.get(device);
+        if (parts == null) {
+            parts = new HashMap<Long, Bucket>();
+            late.put(device, parts);
+        }
+        Bucket part = parts.get(start);
+        if (part == null) {
+            part = new Bucket(device, 0, start);
+            parts.put(start, part);
+        }
+        return part;
+    }
+
+    /**
+     * Closes the batch's late parts. Each is merged into the bucket it belongs to if that is
+     * closed and not written yet, or else closed as a part of its own, and likewise one level up
+     * after another until the open bucket there covers it and takes it in. Parts merge with the
+     * rest of their row when written.
+     */
+    private void foldLate() {
+        if (late.isEmpty()) {
+            return;
+        }
+        //Closed buckets by device, then by time + level (times are whole seconds)
+        HashMap<Long, HashMap<Long, Bucket>> unwritten = new HashMap<Long, HashMap<Long, Bucket>>();
+        for (Bucket bucket : closed) {
+            indexed(unwritten, bucket.device).put(bucket.time + bucket.level, bucket);
+        }
+        for (HashMap<Long, Bucket> parts : late.values()) {
+            for (Bucket part : parts.values()) {
+                for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                    part.mean[c] /= part.samples;
+                }
+                Bucket[] levels = open.get(part.device);
+                HashMap<Long, Bucket> byTime = indexed(unwritten, part.device);
+                for (int level = 0; level < LEVELS_MS.length; level++) {
+                    Bucket bucket = levels[level];
+                    if (bucket != null && part.time >= bucket.time && part.time < bucket.end()) {
+                        bucket.merge(part.samples, part.mean, part.min, part.max);
+                        break;
+                    }
+                    long time = part.time - part.time % LEVELS_MS[level];
+                    bucket = byTime.get(time + level);
+                    if (bucket == null) {
+                        bucket = new Bucket(part.device, level, time);
+                        byTime.put(time + level, bucket);
+                        closed.add(bucket);
+                    }
+                    bucket.merge(part.samples, part.mean, part.min, part.max);
+                }
+            }
+        }
+        late.clear();
+    }
+
+    private static HashMap<Long, Bucket> indexed(HashMap<Long, HashMap<Long, Bucket>> index, long device) {
+        HashMap<Long, Bucket> byTime = index.get(device);
+        if (byTime == null) {
+            byTime = new HashMap<Long, Bucket>();
+            index.put(device, byTime);
+        }
+        return byTime;
+    }
+
+    /**
+     * Closes a device's open bucket at level and folds it into the level above, closing that one
+     * first if the bucket lies outside it. Coarser levels are thus built from closed finer buckets
+     * rather than from every sample.
+     */
+    private void close(Bucket[] levels, int level) {
+        Bucket bucket = levels[level];
+        levels[level] = null;
+        if (level == 0) {
+            for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                bucket.mean[c] /= bucket.samples;
+            }
+        }
+        closed.add(bucket);
+        int up = level + 1;
+        if (up == levels.length) {
+            return;
+        }
+        Bucket parent = levels[up];
+        if (parent != null && (bucket.time < parent.time || bucket.time >= parent.end())) {
+            close(levels, up);
+            parent = null;
+        }
+        if (parent == null) {
+            parent = new Bucket(bucket.device, up, bucket.time - bucket.time % LEVELS_MS[up]);
+            levels[up] = parent;
+        }
+        parent.merge(bucket.samples, bucket.mean, bucket.min, bucket.max);
+    }
+
+    //Closes buckets that ended more than GRACE_MS before now, finest first so each feeds the next
+    public void closeQuiet(long now) {
+        Iterator<Bucket[]> devices = open.values().iterator();
+        while (devices.hasNext()) {
+            Bucket[] levels = devices.next();
+            boolean empty = true;
+            for (int level = 0; level < levels.length; level++) {
+                if (levels[level] != null && levels[level].end() + GRACE_MS <= now) {
+                    close(levels, level);
+                }
+                empty &= levels[level] == null;
+            }
+            if (empty) {
+                devices.remove();
+            }
+        }
+    }
+
+    //Closes every open bucket, for shutdown; partial buckets merge with the rest later
+    public void closeAll() {
+        for (Bucket[] levels : open.values()) {
+            for (int level = 0; level < levels.length; level++) {
+                if (levels[level] != null) {
+                    close(levels, level);
+                }
+            }
+        }
+        open.clear();
+    }
+
+    //Hands the closed buckets over to a caller that writes them itself
+    public List<Bucket> takeClosed() {
+        ArrayList<Bucket> taken = new ArrayList<Bucket>(closed);
+        closed.clear();
+        return taken;
+    }
+
+    /**
+     * Merges the closed buckets into caneRollups. Returns false and keeps them for the next try
+     * if the database write failed.
+     */
+    public boolean writeClosed() {
+        if (closed.isEmpty()) {
+            return true;
+        }
+        if (!"Clear".equals(DBHelper.mergeRollups(closed))) {
+            return false;
+        }
+        closed.clear();
+        return true;
+    }
+}
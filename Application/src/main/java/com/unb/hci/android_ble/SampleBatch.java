@@ -0,0 +1,138 @@
+package com.unb.hci.android_ble;
+
+/**
+ * Columnar block of samples: one long[] of times, one long[] of device ids (see IngestLane;
+ * 0 where the source is unknown), one int[] of seqs (the sample's place among its device's
+ * samples in the same millisecond, given by IngestLane; 0 where not known) and one float[] per
+ * channel, indexed by the KinematicData CHANNEL_ constants. Used end to end (ingest, insert, query, export) in place of
+ * KinematicData[] so a sample costs 60 bytes rather than a ~100 byte object plus reference, and
+ * loops over one channel walk a single primitive array. Batches are meant to be cleared and
+ * reused rather than reallocated.
+ */
+public class SampleBatch {
+    public long[] time;
+    public long[] device;
+    public int[] seq;
+    public final float[][] channels = new float[KinematicData.CHANNEL_COUNT][];
+    public int size;
+
+    public SampleBatch(int capacity) {
+        time = new long[capacity];
+        device = new long[capacity];
+        seq = new int[capacity];
+        for (int c = 0; c < channels.length; c++) {
+            channels[c] = new float[capacity];
+        }
+    }
+
+    public int capacity() {
+        return time.length;
+    }
+
+    public boolean isFull() {
+        return size == time.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    //Grows the arrays if needed, keeping the current contents
+    public void ensureCapacity(int capacity) {
+        if (capacity <= time.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, time.length * 2);
+        long[] newTime = new long[newCapacity];
+        System.arraycopy(time, 0, newTime, 0, size);
+        time = newTime;
+        long[] newDevice = new long[newCapacity];
+        System.arraycopy(device, 0, newDevice, 0, size);
+        device = newDevice;
+        int[] newSeq = new int[newCapacity];
+        System.arraycopy(seq, 0, newSeq, 0, size);
+        seq = newSeq;
+        for (int c = 0; c < channels.length; c++) {
+            float[] newChannel = new float[newCapacity];
+            System.arraycopy(channels[c], 0, newChannel, 0, size);
+            channels[c] = newChannel;
+        }
+    }
+
+    //Appends a decoded sample; the caller checks isFull() first
+    public void add(long timeIn, double[] values) {
+        add(0, timeIn, values);
+    }
+
+    public void add(long deviceIn, long timeIn, double[] values) {
+        add(deviceIn, timeIn, 0, values);
+    }
+
+    public void add(long deviceIn, long timeIn, int seqIn, double[] values) {
+        int i = size++;
+        time[i] = timeIn;
+        device[i] = deviceIn;
+        seq[i] = seqIn;
+        for (int c = 0; c < channels.length; c++) {
+            channels[c][i] = (float) values[c];
+        }
+    }
+
+    public void add(long timeIn, double accx, double accy, double accz, double gyrox, double gyroy,
+                    double gyroz, double pitch, double roll, double force) {
+        int i = size++;
+        time[i] = timeIn;
+        device[i] = 0;
+        seq[i] = 0;
+        channels[KinematicData.CHANNEL_FORCE][i] = (float) force;
+        channels[KinematicData.CHANNEL_ACC_X][i] = (float) accx;
+        channels[KinematicData.CHANNEL_ACC_Y][i] = (float) accy;
+        channels[KinematicData.CHANNEL_ACC_Z][i] = (float) accz;
+        channels[KinematicData.CHANNEL_GYRO_X][i] = (float) gyrox;
+        channels[KinematicData.CHANNEL_GYRO_Y][i] = (float) gyroy;
+        channels[KinematicData.CHANNEL_GYRO_Z][i] = (float) gyroz;
+        channels[KinematicData.CHANNEL_PITCH][i] = (float) pitch;
+        channels[KinematicData.CHANNEL_ROLL][i] = (float) roll;
+        channels[KinematicData.CHANNEL_DISTANCE][i] = 0;
+    }
+
+    //Appends row i of another batch
+    public void add(SampleBatch from, int i) {
+        int j = size++;
+        time[j] = from.time[i];
+        device[j] = from.device[i];
+        seq[j] = from.seq[i];
+        for (int c = 0; c < channels.length; c++) {
+            channels[c][j] = from.channels[c][i];
+        }
+    }
+
+    public float get(int channel, int i) {
+        return channels[channel][i];
+    }
+
+    //Copy of this batch trimmed to its size
+    public SampleBatch copy() {
+        SampleBatch out = new SampleBatch(Math.max(size, 1));
+        System.arraycopy(time, 0, out.time, 0, size);
+        System.arraycopy(device, 0, out.device, 0, size);
+        System.arraycopy(seq, 0, out.seq, 0, size);
+        for (int c = 0; c < channels.length; c++) {
+            System.arraycopy(channels[c], 0, out.channels[c], 0, size);
+        }
+        out.size = size;
+        return out;
+    }
+
+    public String toString(int i) {
+        StringBuilder out = new StringBuilder(Long.toString(time[i]));
+        for (int c = 0; c < channels.length; c++) {
+            out.append(' ').append(channels[c][i]);
+        }
+        return out.toString();
+    }
+}
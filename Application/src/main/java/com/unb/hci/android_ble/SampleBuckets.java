@@ -0,0 +1,179 @@
+package com.unb.hci.android_ble;
+
+/**
+ * Fixed-width time buckets over a range, each summarised by its first sample and the per-channel
+ * mean, minimum and maximum: what a plot needs to draw a trace and its envelope at any zoom.
+ * Filled in one streaming pass by DBHelper.getBuckets(): samples may arrive in any order and in
+ * any number of add() calls, and only the buckets, never the samples, are held.
+ *
+ * After finish() the four batches hold one row per non-empty bucket, in time order, and
+ * counts[i] is the number of samples behind row i. first carries the time of the bucket's first
+ * sample; mean, min and max carry the bucket start time. Channels not read are zero. At most
+ * MAX_BUCKETS buckets are kept; longer ranges get wider buckets.
+ */
+public class SampleBuckets {
+
+    public static final int MAX_BUCKETS = 100000;
+
+    public SampleBatch first;
+    public SampleBatch mean;
+    public SampleBatch min;
+    public SampleBatch max;
+    public int[] counts;
+
+    private long start;
+    private long end;
+    private long bucketMs;
+    private int buckets;
+    private final double[][] sums = new double[KinematicData.CHANNEL_COUNT][];
+
+    public SampleBuckets() {
+        allocate(16);
+    }
+
+    public int size() {
+        return first.size;
+    }
+
+    //Width of the buckets since the last reset(), which may be wider than asked for
+    public long getBucketMs() {
+        return bucketMs;
+    }
+
+    /**
+     * Starts over with bucketMs wide buckets covering [startIn, endIn); the last may be cut short.
+     * Buckets are widened to ceil(range / MAX_BUCKETS) if bucketMsIn would need more than
+     * MAX_BUCKETS of them, see getBucketMs().
+     */
+    public void reset(long startIn, long endIn, long bucketMsIn) {
+        reset(startIn, endIn, bucketMsIn, MAX_BUCKETS);
+    }
+
+    //As reset(), widening the buckets past maxBuckets of them; at most MAX_BUCKETS either way
+    public void reset(long startIn, long endIn, long bucketMsIn, int maxBuckets) {
+        if (bucketMsIn <= 0 || endIn < startIn || maxBuckets <= 0) {
+            throw new IllegalArgumentException("Invalid buckets of " + bucketMsIn + " ms over " + startIn + " to " + endIn);
+        }
+        long range = endIn - startIn;
+        long width = widthFor(range, bucketMsIn, maxBuckets);
+        long count = (range + width - 1) / width;
+        start = startIn;
+        end = endIn;
+        bucketMs = width;
+        buckets = (int) count;
+        if (counts.length < buckets) {
+            allocate(buckets);
+        }
+        for (int b = 0; b < buckets; b++) {
+            counts[b] = 0;
+            first.time[b] = Long.MAX_VALUE;
+            for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                sums[c][b] = 0;
+                min.channels[c][b] = Float.POSITIVE_INFINITY;
+                max.channels[c][b] = Float.NEGATIVE_INFINITY;
+            }
+        }
+        first.size = mean.size = min.size = max.size = 0;
+    }
+
+    //Width reset() gives buckets of bucketMs asked for over range ms with at most maxBuckets of them
+    public static long widthFor(long range, long bucketMs, int maxBuckets) {
+        int most = Math.min(maxBuckets, MAX_BUCKETS);
+        return Math.max(bucketMs, (range + most - 1) / most);
+    }
+
+    //Folds in every sample of batch that falls in the range
+    public void add(SampleBatch batch) {
+        for (int i = 0; i < batch.size; i++) {
+            if (batch.time[i] < start || batch.time[i] >= end) {
+                continue;
+            }
+            int b = (int) ((batch.time[i] - start) / bucketMs);
+            counts[b]++;
+            boolean earliest = batch.time[i] < first.time[b];
+            if (earliest) {
+                first.time[b] = batch.time[i];
+                first.device[b] = batch.device[i];
+            }
+            for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                float v = batch.channels[c][i];
+                sums[c][b] += v;
+                if (v < min.channels[c][b]) {
+                    min.channels[c][b] = v;
+                }
+                if (v > max.channels[c][b]) {
+                    max.channels[c][b] = v;
+                }
+                if (earliest) {
+                    first.channels[c][b] = v;
+                }
+            }
+        }
+    }
+
+    /**
+     * Folds in count samples already summarised as per-channel means, minima and maxima (a
+     * caneRollups row starting at time); its means stand in for a first sample.
+     */
+    public void addSummary(long time, long device, long count, float[] means, float[] mins, float[] maxes) {
+        if (count <= 0 || time < start || time >= end) {
+            return;
+        }
+        int b = (int) ((time - start) / bucketMs);
+        counts[b] += count;
+        boolean earliest = time < first.time[b];
+        if (earliest) {
+            first.time[b] = time;
+            first.device[b] = device;
+        }
+        for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+            sums[c][b] += (double) means[c] * count;
+            if (mins[c] < min.channels[c][b]) {
+                min.channels[c][b] = mins[c];
+            }
+            if (maxes[c] > max.channels[c][b]) {
+                max.channels[c][b] = maxes[c];
+            }
+            if (earliest) {
+                first.channels[c][b] = means[c];
+            }
+        }
+    }
+
+    //Packs the non-empty buckets into the rows of the four batches
+    public void finish() {
+        int n = 0;
+        for (int b = 0; b < buckets; b++) {
+            int count = counts[b];
+            if (count == 0) {
+                continue;
+            }
+            long bucketStart = start + b * bucketMs;
+            counts[n] = count;
+            first.time[n] = first.time[b];
+            first.device[n] = first.device[b];
+            mean.time[n] = min.time[n] = max.time[n] = bucketStart;
+            mean.device[n] = min.device[n] = max.device[n] = first.device[b];
+            for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+                first.channels[c][n] = first.channels[c][b];
+                mean.channels[c][n] = (float) (sums[c][b] / count);
+                min.channels[c][n] = min.channels[c][b];
+                max.channels[c][n] = max.channels[c][b];
+            }
+            n++;
+        }
+        first.size = mean.size = min.size = max.size = n;
+        buckets = 0;
+    }
+
+    private void allocate(int capacity) {
+        first = new SampleBatch(capacity);
+        mean = new SampleBatch(capacity);
+        min = new SampleBatch(capacity);
+        max = new SampleBatch(capacity);
+        counts = new int[capacity];
+        for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+            sums[c] = new double[capacity];
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.unb.hci.android_ble;
+
+/**
+ * Receives decoded samples from BluetoothLeService, on the executor given when subscribing.
+ */
+public interface SampleListener {
+    /**
+     * Called once per notification with the samples it carried, in time order, or for a
+     * rate-limited subscription with the reduced rows of each closed interval. The batch may be
+     * shared between subscribers and must not be modified.
+     */
+    void onSamples(String address, SampleBatch batch);
+}
@@ -0,0 +1,97 @@
+package com.unb.hci.android_ble;
+
+import android.database.Cursor;
+
+import java.util.Arrays;
+
+/**
+ * The channels a caneFull query asks for, and the reader that moves its rows into a SampleBatch.
+ * columns() is the select list (device, time, then the channels); read() resolves the cursor's
+ * column indices once and then copies every row with typed getLong/getFloat calls, so a cell
+ * costs no name lookup, String or parse. Channels outside the projection are zeroed.
+ *
+ * Not thread safe; the reader caches the last device id it mapped.
+ */
+public class SampleProjection {
+
+    public static final int[] ALL_CHANNELS = {
+            KinematicData.CHANNEL_FORCE, KinematicData.CHANNEL_ACC_X, KinematicData.CHANNEL_ACC_Y,
+            KinematicData.CHANNEL_ACC_Z, KinematicData.CHANNEL_GYRO_X, KinematicData.CHANNEL_GYRO_Y,
+            KinematicData.CHANNEL_GYRO_Z, KinematicData.CHANNEL_PITCH, KinematicData.CHANNEL_ROLL,
+            KinematicData.CHANNEL_DISTANCE};
+
+    private final int[] channels;
+    private final String columns;
+    private final int[] indexes;
+    private long lastKey = -1;
+    private long lastMac;
+
+    public SampleProjection(int... channelsIn) {
+        channels = channelsIn.clone();
+        indexes = new int[channels.length];
+        StringBuilder out = new StringBuilder(DBHelper.CANE_COLUMN_DEVICE).append(", ").append(DBHelper.CANE_COLUMN_TIME);
+        for (int c : channels) {
+            out.append(", ").append(KinematicData.CHANNEL_NAMES[c]);
+        }
+        columns = out.toString();
+    }
+
+    public String columns() {
+        return columns;
+    }
+
+    public int[] channels() {
+        return channels.clone();
+    }
+
+    /**
+     * Appends up to max rows from the cursor's current position to out, growing it as needed,
+     * and returns the number appended. The cursor must select columns(); device ids are mapped
+     * back to MACs (IngestLane.deviceId).
+     */
+    public int read(Cursor res, SampleBatch out, int max) {
+        int device = res.getColumnIndexOrThrow(DBHelper.CANE_COLUMN_DEVICE);
+        int time = res.getColumnIndexOrThrow(DBHelper.CANE_COLUMN_TIME);
+        for (int k = 0; k < channels.length; k++) {
+            indexes[k] = res.getColumnIndexOrThrow(KinematicData.CHANNEL_NAMES[channels[k]]);
+        }
+        int start = out.size;
+        out.ensureCapacity(start + Math.min(max, Math.max(res.getCount(), 0)));
+        for (int c = 0; c < KinematicData.CHANNEL_COUNT; c++) {
+            if (!projects(c)) {
+                Arrays.fill(out.channels[c], start, out.capacity(), 0);
+            }
+        }
+        while (out.size - start < max && !res.isAfterLast()) {
+            if (out.isFull()) {
+                out.ensureCapacity(out.size + 1);
+            }
+            int i = out.size++;
+            out.time[i] = res.getLong(time);
+            long key = res.getLong(device);
+            if (key != lastKey) {
+                lastKey = key;
+                lastMac = DBHelper.deviceMac(key);
+            }
+            out.device[i] = lastMac;
+            for (int k = 0; k < channels.length; k++) {
+                out.channels[channels[k]][i] = res.getFloat(indexes[k]);
+            }
+            res.moveToNext();
+        }
+        return out.size - start;
+    }
+
+    public int read(Cursor res, SampleBatch out) {
+        return read(res, out, Integer.MAX_VALUE);
+    }
+
+    private boolean projects(int channel) {
+        for (int c : channels) {
+            if (c == channel) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,103 @@
+package com.unb.hci.android_ble;
+
+/**
+ * Condenses one device's stream into one row (two for MIN_MAX) per fixed interval of sample
+ * time. Intervals are closed by the first sample that falls past them, so a stream that stops
+ * leaves its last partial interval undelivered until it resumes.
+ */
+class SampleReducer {
+    private final long intervalMs;
+    private final ReductionMode mode;
+    private final double[] sum = new double[KinematicData.CHANNEL_COUNT];
+    private final float[] min = new float[KinematicData.CHANNEL_COUNT];
+    private final float[] max = new float[KinematicData.CHANNEL_COUNT];
+    private final float[] latest = new float[KinematicData.CHANNEL_COUNT];
+    private long intervalEnd = Long.MIN_VALUE;
+    private long firstTime;
+    private long lastTime;
+    private long device;
+    private double timeSum;
+    private int count;
+
+    SampleReducer(long intervalMs, ReductionMode mode) {
+        this.intervalMs = intervalMs;
+        this.mode = mode;
+    }
+
+    //Rows emit() appends per closed interval
+    int rowsPerInterval() {
+        return mode == ReductionMode.MIN_MAX ? 2 : 1;
+    }
+
+    //True if a sample at time t would close the current interval
+    boolean closes(long t) {
+        return count > 0 && t >= intervalEnd;
+    }
+
+    /**
+     * Adds row i of in. If the sample closes the current interval, the reduced rows are appended
+     * to out first; out must then have room for rowsPerInterval() more rows.
+     */
+    void add(SampleBatch in, int i, SampleBatch out) {
+        long t = in.time[i];
+        if (closes(t)) {
+            emit(out);
+        }
+        if (count == 0) {
+            intervalEnd = t - t % intervalMs + intervalMs;
+            firstTime = t;
+            timeSum = 0;
+            for (int c = 0; c < sum.length; c++) {
+                sum[c] = 0;
+                min[c] = Float.POSITIVE_INFINITY;
+                max[c] = Float.NEGATIVE_INFINITY;
+            }
+        }
+        for (int c = 0; c < sum.length; c++) {
+            float v = in.channels[c][i];
+            sum[c] += v;
+            if (v < min[c]) {
+                min[c] = v;
+            }
+            if (v > max[c]) {
+                max[c] = v;
+            }
+            latest[c] = v;
+        }
+        timeSum += t;
+        lastTime = t;
+        device = in.device[i];
+        count++;
+    }
+
+    private void emit(SampleBatch out) {
+        int row = out.size;
+        switch (mode) {
+            case LATEST:
+                out.time[row] = lastTime;
+                for (int c = 0; c < sum.length; c++) {
+                    out.channels[c][row] = latest[c];
+                }
+                break;
+            case MEAN:
+                out.time[row] = Math.round(timeSum / count);
+                for (int c = 0; c < sum.length; c++) {
+                    out.channels[c][row] = (float) (sum[c] / count);
+                }
+                break;
+            default:
+                out.time[row] = firstTime;
+                out.time[row + 1] = lastTime;
+                for (int c = 0; c < sum.length; c++) {
+                    out.channels[c][row] = min[c];
+                    out.channels[c][row + 1] = max[c];
+                }
+                break;
+        }
+        for (int r = row; r < row + rowsPerInterval(); r++) {
+            out.device[r] = device;
+        }
+        out.size += rowsPerInterval();
+        count = 0;
+    }
+}
@@ -0,0 +1,146 @@
+package com.unb.hci.android_ble;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer / single-consumer queue of decoded samples, stored column-wise in
+ * preallocated arrays so publishing a sample allocates nothing.
+ *
+ * Producers (GATT callbacks) claim a slot by CAS on head, write it, then publish it by storing
+ * its sequence number; they never take a lock or wait for the consumer. The single consumer (the
+ * storage writer) copies published slots out in order and then advances tail by CAS. A producer
+ * may also discard the oldest sample by advancing tail itself (evictOldest), in which case the
+ * consumer's CAS fails and it throws away its copy and reads again from the new tail.
+ *
+ * Each sample carries a journal mark, and the consumer keeps the highest mark drained per source
+ * (getDrainedMark()). Producers make that safe to checkpoint: a device's samples are published in
+ * its journal's order, and only the last sample of a notification carries the notification's
+ * position, the others carry the position of the notification before (IngestLane.publish()).
+ */
+public class SampleRing {
+    private final int mask;
+    private final long[] time;
+    private final int[] source;     //Id of the IngestStats the sample belongs to
+    private final long[] device;
+    private final int[] seq;
+    private final long[] mark;      //Journal position of the sample's notification, see RawJournal
+    private final float[][] channels = new float[KinematicData.CHANNEL_COUNT][];
+    private final AtomicLongArray published;   //Slot i holds position+1 once its sample is written
+    private final AtomicLong head = new AtomicLong();  //Next position to claim
+    private final AtomicLong tail = new AtomicLong();  //Next position to consume
+    private long[] drainedMarks = new long[0];  //By source id; consumer only
+    private long[] copiedMarks = new long[0];   //drainedMarks as they will be if the drain succeeds
+
+    public SampleRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = size - 1;
+        time = new long[size];
+        source = new int[size];
+        device = new long[size];
+        seq = new int[size];
+        mark = new long[size];
+        for (int c = 0; c < channels.length; c++) {
+            channels[c] = new float[size];
+        }
+        published = new AtomicLongArray(size);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    //Approximate number of queued samples
+    public int size() {
+        return (int) Math.max(0, head.get() - tail.get());
+    }
+
+    /**
+     * Publishes one sample, or returns false without blocking if the ring is full.
+     */
+    public boolean offer(int sourceId, long deviceId, long markIn, long timeIn, int seqIn, double[] values) {
+        long position;
+        do {
+            position = head.get();
+            if (position - tail.get() > mask) {
+                return false;
+            }
+        } while (!head.compareAndSet(position, position + 1));
+        int slot = (int) position & mask;
+        time[slot] = timeIn;
+        source[slot] = sourceId;
+        device[slot] = deviceId;
+        seq[slot] = seqIn;
+        mark[slot] = markIn;
+        for (int c = 0; c < channels.length; c++) {
+            channels[c][slot] = (float) values[c];
+        }
+        published.lazySet(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Discards the oldest published sample to make room and returns its source id, or -1 if there
+     * was nothing to discard (ring empty, or the oldest slot is still being written).
+     */
+    public int evictOldest() {
+        long position = tail.get();
+        if (position >= head.get()) {
+            return -1;
+        }
+        int slot = (int) position & mask;
+        if (published.get(slot) != position + 1) {
+            return -1;
+        }
+        int evicted = source[slot];
+        return tail.compareAndSet(position, position + 1) ? evicted : -1;
+    }
+
+    //Highest mark of a source's samples moved by drainTo(), or 0; consumer only
+    public long getDrainedMark(int sourceId) {
+        return sourceId < drainedMarks.length ? drainedMarks[sourceId] : 0;
+    }
+
+    /**
+     * Moves up to max published samples into out, in the order they were claimed. Only the
+     * consumer thread may call this. Returns the number of samples moved.
+     */
+    public int drainTo(SampleBatch out, int max) {
+        while (true) {
+            long start = tail.get();
+            long position = start;
+            int moved = 0;
+            long[] marks = copiedMarks;
+            System.arraycopy(drainedMarks, 0, marks, 0, drainedMarks.length);
+            while (moved < max) {
+                int slot = (int) position & mask;
+                if (published.get(slot) != position + 1) {
+                    break;  //Next slot not written yet
+                }
+                int i = out.size++;
+                out.time[i] = time[slot];
+                out.device[i] = device[slot];
+                out.seq[i] = seq[slot];
+                int from = source[slot];
+                if (from >= marks.length) {
+                    marks = copiedMarks = Arrays.copyOf(marks, from + 1);
+                    drainedMarks = Arrays.copyOf(drainedMarks, from + 1);
+                }
+                marks[from] = Math.max(marks[from], mark[slot]);
+                for (int c = 0; c < channels.length; c++) {
+                    out.channels[c][i] = channels[c][slot];
+                }
+                position++;
+                moved++;
+            }
+            if (moved == 0 || tail.compareAndSet(start, position)) {
+                copiedMarks = drainedMarks;
+                drainedMarks = marks;
+                return moved;
+            }
+            //A producer evicted from under us and the copied slots may have been reused
+            out.size -= moved;
+        }
+    }
+}
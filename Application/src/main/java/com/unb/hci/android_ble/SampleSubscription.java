@@ -0,0 +1,62 @@
+package com.unb.hci.android_ble;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Handle returned by BluetoothLeService.subscribe(). Delivers each batch through the
+ * subscriber's executor so the GATT callback thread never runs subscriber code. The batches
+ * handed in are the ingest lane's scratch space, reused for its next packet, so this plain
+ * subscription copies each one; rate-limited subscriptions (ReducingSubscription) reduce it in
+ * place and allocate only when an interval closes.
+ */
+public class SampleSubscription {
+    public final String address;    //null for every device
+    private final Executor executor;
+    private final SampleListener listener;
+    private volatile boolean cancelled;
+
+    SampleSubscription(String address, Executor executor, SampleListener listener) {
+        this.address = address;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    boolean matches(String deviceAddress) {
+        return address == null || address.equals(deviceAddress);
+    }
+
+    //Called on the GATT thread; batch is only valid until the call returns
+    void deliver(String deviceAddress, SampleBatch batch) {
+        if (cancelled) {
+            return;
+        }
+        post(deviceAddress, batch.copy());
+    }
+
+    //Hands a batch the subscription owns to the executor
+    final void post(final String deviceAddress, final SampleBatch batch) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    //Batches already queued on the executor are skipped once cancelled
+                    if (!cancelled) {
+                        listener.onSamples(deviceAddress, batch);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            cancelled = true;   //Executor shut down: nothing more can be delivered
+        }
+    }
+
+    //Stops delivery; batches not yet run are dropped
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,127 @@
+package com.unb.hci.android_ble;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streaming step detector on the force channel. A step starts when force rises to the onset
+ * threshold and ends when it falls back to the release threshold; the gap between the two
+ * (hysteresis) keeps noise around a single threshold from splitting one step into many. Each
+ * step records onset time, peak force and its time, duration and impulse (force integrated over
+ * time), and finished steps are written to caneSteps. Loads shorter than MIN_STEP_MS or longer
+ * than MAX_STEP_MS (leaning on the cane) are not steps.
+ *
+ * Runs on the StorageWriter thread over committed batches; thresholds can be changed per device
+ * from any thread.
+ */
+public class StepDetector {
+
+    //Starting points in raw FSR counts; tune per cane with setThresholds()
+    public static final double DEFAULT_ONSET = 100;
+    public static final double DEFAULT_RELEASE = 50;
+    private static final long MIN_STEP_MS = 100;
+    private static final long MAX_STEP_MS = 5000;
+    private static final long MAX_GAP_MS = 1000;    //A longer gap in the data abandons a step in progress
+
+    public static class Step {
+        public final long device;
+        public final long onset;
+        public long peakTime;
+        public double peakForce;
+        public long duration;
+        public double impulse;     //Force x seconds
+
+        Step(long device, long onset) {
+            this.device = device;
+            this.onset = onset;
+        }
+    }
+
+    //Per-device detector state
+    private static class State {
+        Step step;          //null while unloaded
+        long lastTime = Long.MIN_VALUE;
+        double lastForce;
+    }
+
+    private final ConcurrentHashMap<Long, double[]> thresholds = new ConcurrentHashMap<Long, double[]>();
+    private final HashMap<Long, State> states = new HashMap<Long, State>();
+    private final ArrayList<Step> finished = new ArrayList<Step>();
+
+    public void setThresholds(long device, double onset, double release) {
+        if (release > onset) {
+            throw new IllegalArgumentException("Release " + release + " above onset " + onset);
+        }
+        thresholds.put(device, new double[]{onset, release});
+    }
+
+    public void add(SampleBatch batch) {
+        float[] force = batch.channels[KinematicData.CHANNEL_FORCE];
+        State state = null;
+        long device = 0;
+        double onset = DEFAULT_ONSET;
+        double release = DEFAULT_RELEASE;
+        for (int i = 0; i < batch.size; i++) {
+            if (state == null || batch.device[i] != device) {
+                device = batch.device[i];
+                state = states.get(device);
+                if (state == null) {
+                    state = new State();
+                    states.put(device, state);
+                }
+                double[] limits = thresholds.get(device);
+                onset = limits != null ? limits[0] : DEFAULT_ONSET;
+                release = limits != null ? limits[1] : DEFAULT_RELEASE;
+            }
+            long time = batch.time[i];
+            double f = force[i];
+            long dt = time - state.lastTime;
+            if (state.lastTime == Long.MIN_VALUE || dt < 0 || dt > MAX_GAP_MS) {
+                state.step = null;
+                dt = 0;
+            }
+            Step step = state.step;
+            if (step == null) {
+                if (f >= onset) {
+                    step = new Step(device, time);
+                    step.peakTime = time;
+                    step.peakForce = f;
+                    state.step = step;
+                }
+            } else {
+                step.impulse += (f + state.lastForce) * 0.5 * dt / 1000.0;
+                if (f > step.peakForce) {
+                    step.peakForce = f;
+                    step.peakTime = time;
+                }
+                if (f <= release) {
+                    step.duration = time - step.onset;
+                    if (step.duration >= MIN_STEP_MS && step.duration <= MAX_STEP_MS) {
+                        finished.add(step);
+                    }
+                    state.step = null;
+                } else if (time - step.onset > MAX_STEP_MS) {
+                    state.step = null;
+                }
+            }
+            state.lastTime = time;
+            state.lastForce = f;
+        }
+    }
+
+    /**
+     * Writes the steps finished so far to caneSteps. Returns false and keeps them for the next
+     * try if the database write failed.
+     */
+    public boolean writeFinished() {
+        if (finished.isEmpty()) {
+            return true;
+        }
+        if (!"Clear".equals(DBHelper.insertSteps(finished))) {
+            return false;
+        }
+        finished.clear();
+        return true;
+    }
+}
@@ -0,0 +1,10 @@
+package com.unb.hci.android_ble;
+
+/**
+ * Where the StorageWriter puts live samples. Reads and exports cover both tables, so the layout
+ * can be switched mid-recording.
+ */
+public enum StorageLayout {
+    ROWS,       //One caneFull row of doubles per sample
+    CHUNKS      //caneChunks rows of delta encoded quantized samples, see ChunkCodec
+}
@@ -0,0 +1,349 @@
+package com.unb.hci.android_ble;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background thread that drains the SampleRing into SQLite, so GATT callbacks only ever pay for
+ * publishing into the ring and never for a database commit. After each successful commit the
+ * RawJournal of each device is checkpointed up to its last committed sample, and the committed rows
+ * are folded into the hourly caneAnalytics rows (HourlyAnalytics) and the caneRollups pyramid
+ * (RollupPyramid), and run through the StepDetector.
+ *
+ * Samples from every device are group-committed: one transaction is written when either
+ * maxBatch samples are pending or the oldest pending sample has waited maxLatencyMs, whichever
+ * comes first. Under load that gives large, efficient transactions; when a stream stops
+ * mid-batch its tail still reaches the database within the latency bound.
+ *
+ * A commit that fails keeps its batch and is retried with a growing backoff. Meanwhile nothing
+ * more is drained and the journal is not checkpointed, so no sample is dropped or forgotten by
+ * the journal; if the database stays unavailable the ring fills and the OverloadPolicy decides.
+ *
+ * The writer owns the devices' journals (openJournal()) and does their disk work between
+ * commits (RawJournal.settle()), so none of it lands on a GATT callback.
+ */
+public class StorageWriter extends Thread {
+    private final static String TAG = StorageWriter.class.getSimpleName();
+
+    private static final long POLL_MS = 5;     //Longest sleep while waiting for samples
+    private static final long MIN_RETRY_MS = 100;      //First wait after a failed commit...
+    private static final long MAX_RETRY_MS = 10000;    //...doubling up to this
+
+    private final SampleRing ring;
+    private final File journalRoot;     //Null to record without journals
+    private final Object journalLock = new Object();
+    private volatile RawJournal[] journals = new RawJournal[0];     //By IngestStats id
+    private long[] checkpointed = new long[0];     //Last position checkpointed per journal
+    private final HourlyAnalytics analytics = new HourlyAnalytics();
+    private final StepDetector steps = new StepDetector();
+    private final RollupPyramid rollups = new RollupPyramid();
+    private final ChunkCodec chunkCodec = new ChunkCodec();
+    private final Object layoutLock = new Object();
+    private volatile double[] chunkScales = ChunkCodec.SCALES;     //Finest of the layouts in use
+    private volatile StorageLayout layout = StorageLayout.ROWS;
+    private volatile ConflictPolicy conflictPolicy = ConflictPolicy.QUARANTINE;
+    private JournalReplay replay;   //Left over from a killed process, replayed before anything else
+    private final SampleBatch batch;
+    private final SampleBatch inserted = new SampleBatch(16);  //Rows of the last commit stored as new
+    private volatile int maxBatch;
+    private volatile long maxLatencyMs;
+    private volatile boolean running = true;
+    private long pendingSince;      //nanoTime when the oldest pending sample was drained
+    private long retryDelayMs;      //0 unless the batch failed to commit and waits for a retry
+    private long retryAt;           //nanoTime of that retry
+
+    //Statistics, guarded by statsLock (not this: Thread.join() waits on the thread's own monitor)
+    private final Object statsLock = new Object();
+    private long commits;
+    private long committedSamples;
+    private long failedCommits;
+    private long batchedSamples;
+    private int lastBatchSize;
+    private int largestBatchSize;
+    private long lastCommitNanos;
+    private long longestCommitNanos;
+    private long totalCommitNanos;
+
+    public static class Stats {
+        public long commits;
+        public long committedSamples;
+        public long failedCommits;
+        public int lastBatchSize;
+        public int largestBatchSize;
+        public double meanBatchSize;
+        public double lastCommitMs;
+        public double longestCommitMs;
+        public double meanCommitMs;
+
+        public String toString() {
+            return commits + " commits (" + failedCommits + " failed), batch last/mean/max " + lastBatchSize + "/"
+                    + Math.round(meanBatchSize) + "/" + largestBatchSize + ", commit ms last/mean/max "
+                    + Math.round(lastCommitMs) + "/" + Math.round(meanCommitMs) + "/" + Math.round(longestCommitMs);
+        }
+    }
+
+    /**
+     * journalRoot is the directory the devices' journals go under (see RawJournal), or null to
+     * record without them.
+     */
+    public StorageWriter(SampleRing ring, File journalRoot, int maxBatch, long maxLatencyMs) {
+        super("StorageWriter");
+        this.ring = ring;
+        this.journalRoot = journalRoot;
+        this.batch = new SampleBatch(maxBatch);
+        setFlushPolicy(maxBatch, maxLatencyMs);
+    }
+
+    //Replays a previous run's journal into SQLite when the thread starts; call before start()
+    public void replayFirst(JournalReplay replayIn) {
+        replay = replayIn;
+    }
+
+    /**
+     * Returns the journal of the device behind stats, opening it on first use, or null if there
+     * are no journals or it could not be opened.
+     */
+    public RawJournal openJournal(IngestStats stats) {
+        if (journalRoot == null) {
+            return null;
+        }
+        synchronized (journalLock) {
+            RawJournal[] open = journals;
+            if (stats.id < open.length && open[stats.id] != null) {
+                return open[stats.id];
+            }
+            RawJournal journal;
+            try {
+                journal = new RawJournal(RawJournal.deviceDirectory(journalRoot, stats.address));
+            } catch (IOException e) {
+                Log.e(TAG, "openJournal: Recording " + stats.address + " without a journal: " + e.getMessage());
+                return null;
+            }
+            open = Arrays.copyOf(open, Math.max(open.length, stats.id + 1));
+            open[stats.id] = journal;
+            journals = open;
+            return journal;
+        }
+    }
+
+    //Takes effect from the next flush
+    public void setFlushPolicy(int maxBatch, long maxLatencyMs) {
+        if (maxBatch < 1 || maxLatencyMs < 0) {
+            throw new IllegalArgumentException("Invalid flush policy " + maxBatch + " samples / " + maxLatencyMs + " ms");
+        }
+        this.maxBatch = maxBatch;
+        this.maxLatencyMs = maxLatencyMs;
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        if (replay != null) {
+            //New samples wait in the ring meanwhile
+            if (!replay.replay(this)) {
+                Log.w(TAG, "run: Journal replay incomplete, will retry on next start");
+            }
+            replay = null;
+        }
+        while (running) {
+            if (retryDelayMs > 0) {
+                long wait = retryAt - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else {
+                    flush();
+                }
+                continue;
+            }
+            int target = maxBatch;
+            batch.ensureCapacity(target);
+            boolean wasEmpty = batch.isEmpty();
+            int moved = ring.drainTo(batch, Math.max(0, target - batch.size));
+            long now = System.nanoTime();
+            if (moved > 0 && wasEmpty) {
+                pendingSince = now;
+            }
+            long waitedNanos = now - pendingSince;
+            long latencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMs);
+            if (batch.size >= target || (!batch.isEmpty() && waitedNanos >= latencyNanos)) {
+                flush();
+                settleJournals();
+            } else if (moved == 0) {
+                settleJournals();
+                long park = TimeUnit.MILLISECONDS.toNanos(POLL_MS);
+                if (!batch.isEmpty()) {
+                    park = Math.min(park, latencyNanos - waitedNanos);
+                }
+                LockSupport.parkNanos(park);
+            }
+        }
+        //Write out whatever is left before exiting; what cannot be written stays in the journal
+        do {
+            batch.ensureCapacity(maxBatch);
+            ring.drainTo(batch, batch.capacity() - batch.size);
+            if (!flush()) {
+                Log.w(TAG, "run: Commit failed at shutdown, " + (batch.size + ring.size()) + " samples left to the journal");
+                break;
+            }
+        } while (ring.size() > 0);
+        analytics.closeAll();
+        analytics.writeClosed();
+        rollups.closeAll();
+        rollups.writeClosed();
+        steps.writeFinished();
+        for (RawJournal journal : journals) {
+            if (journal != null) {
+                journal.close();    //Removes its segments if they were all committed
+            }
+        }
+    }
+
+    //Commits the batch; returns false, keeping the batch for a retry, if the commit failed
+    private boolean flush() {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        if (!commit(batch, conflictPolicy)) {
+            retryDelayMs = retryDelayMs == 0 ? MIN_RETRY_MS : Math.min(2 * retryDelayMs, MAX_RETRY_MS);
+            retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelayMs);
+            Log.w(TAG, "flush: Retrying " + batch.size + " samples in " + retryDelayMs + " ms");
+            return false;
+        }
+        retryDelayMs = 0;
+        checkpointJournals();
+        batch.clear();
+        return true;
+    }
+
+    /**
+     * Writes rows in the current StorageLayout (policy only applies to ROWS; CHUNKS leaves out
+     * samples it holds already) and, if that worked, folds the rows that were stored as new ones
+     * into the analytics, rollups and step detector; rows dropped as already stored, replaced or
+     * quarantined were counted already or are not data. Returns false if the write failed. Used
+     * by flush() and, on this thread, by JournalReplay.
+     */
+    boolean commit(SampleBatch rows, ConflictPolicy policy) {
+        long start = System.nanoTime();
+        SampleBatch stored = inserted;
+        String result;
+        if (layout == StorageLayout.CHUNKS) {
+            chunkCodec.setScales(chunkScales);
+            result = DBHelper.insertChunks(rows, chunkCodec, inserted);
+        } else {
+            inserted.clear();
+            result = DBHelper.fullInsertLoop(rows, policy, inserted);
+        }
+        long elapsed = System.nanoTime() - start;
+        boolean failed = !"Clear".equals(result);
+        if (failed) {
+            Log.w(TAG, "commit: Insert of " + rows.size + " samples failed: " + result);
+        } else {
+            analytics.add(stored);
+            analytics.closeQuiet(System.currentTimeMillis());
+            if (!analytics.writeClosed()) {
+                Log.w(TAG, "commit: Analytics update failed, will retry");
+            }
+            rollups.add(stored);
+            rollups.closeQuiet(System.currentTimeMillis());
+            if (!rollups.writeClosed()) {
+                Log.w(TAG, "commit: Rollup update failed, will retry");
+            }
+            steps.add(stored);
+            if (!steps.writeFinished()) {
+                Log.w(TAG, "commit: Step insert failed, will retry");
+            }
+        }
+        synchronized (statsLock) {
+            commits++;
+            if (failed) {
+                failedCommits++;
+            } else {
+                committedSamples += rows.size;
+            }
+            batchedSamples += rows.size;
+            lastBatchSize = rows.size;
+            largestBatchSize = Math.max(largestBatchSize, rows.size);
+            lastCommitNanos = elapsed;
+            longestCommitNanos = Math.max(longestCommitNanos, elapsed);
+            totalCommitNanos += elapsed;
+        }
+        return !failed;
+    }
+
+    //Everything drained is committed now; moves each journal's checkpoint up to it
+    private void checkpointJournals() {
+        RawJournal[] open = journals;
+        if (checkpointed.length < open.length) {
+            checkpointed = Arrays.copyOf(checkpointed, open.length);
+        }
+        for (int id = 0; id < open.length; id++) {
+            long mark = ring.getDrainedMark(id);
+            if (open[id] != null && mark > checkpointed[id]) {
+                open[id].checkpoint(mark);
+                checkpointed[id] = mark;
+            }
+        }
+    }
+
+    private void settleJournals() {
+        for (RawJournal journal : journals) {
+            if (journal != null) {
+                journal.settle();
+            }
+        }
+    }
+
+    //Takes effect from the next flush
+    public void setStorageLayout(StorageLayout layoutIn) {
+        layout = layoutIn;
+    }
+
+    //Makes chunks keep every value layout decodes, from the next flush on; see ChunkCodec.scalesFor()
+    public void addChunkLayout(PacketLayout layoutIn) {
+        synchronized (layoutLock) {
+            chunkScales = ChunkCodec.finest(chunkScales, ChunkCodec.scalesFor(layoutIn));
+        }
+    }
+
+    //Takes effect from the next flush
+    public void setConflictPolicy(ConflictPolicy policy) {
+        conflictPolicy = policy;
+    }
+
+    public StepDetector getStepDetector() {
+        return steps;
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        synchronized (statsLock) {
+            stats.commits = commits;
+            stats.committedSamples = committedSamples;
+            stats.failedCommits = failedCommits;
+            stats.lastBatchSize = lastBatchSize;
+            stats.largestBatchSize = largestBatchSize;
+            stats.meanBatchSize = commits == 0 ? 0 : (double) batchedSamples / commits;
+            stats.lastCommitMs = lastCommitNanos / 1e6;
+            stats.longestCommitMs = longestCommitNanos / 1e6;
+            stats.meanCommitMs = commits == 0 ? 0 : totalCommitNanos / 1e6 / commits;
+        }
+        return stats;
+    }
+
+    //Stops the thread after it has written everything already published to the ring
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}